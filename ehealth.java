@@ -1,33 +1,65 @@
 import java.util.*;
 import java.lang.String;
 import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.time.format.DateTimeFormatter;  
 import java.time.LocalDateTime; 
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 class Info
 {
 Info()
 {	
-System.out.print("\t\t\t\t\t ___________________________________________________________________________________________\n");
-System.out.print("\t\t\t\t\t|                                           		                                    |\n");
-System.out.print("\t\t\t\t\t|                                           		                                    |\n");
-System.out.print("\t\t\t\t\t|                                           		                                    |\n");
-System.out.print("\t\t\t\t\t|                                           		                                    |\n");
-System.out.print("\t\t\t\t\t|                                           		                                    |\n");
-System.out.print("\t\t\t\t\t|                                           		                                    |\n");
-System.out.print("\t\t\t\t\t|                            WELCOME TO E-HEALTH CARE MANAGEMENT SYSTEM                     |\n");
-System.out.print("\t\t\t\t\t|                                                                                           |\n");
-System.out.print("\t\t\t\t\t|                                                                                           |\n");
-System.out.print("\t\t\t\t\t|                                                                                           |\n");
-System.out.print("\t\t\t\t\t|                                                                                           |\n");
-System.out.print("\t\t\t\t\t|                                                                                           |\n");
-System.out.print("\t\t\t\t\t|                                                                                           |\n");
-System.out.print("\t\t\t\t\t|                                         -Brought To You by                                |\n");
-System.out.print("\t\t\t\t\t|                                      	 Md Fahad,Omer Mohiuddin and Yaseen Hussain         |\n");
-System.out.print("\t\t\t\t\t|___________________________________________________________________________________________|\n");
+console.print("\t\t\t\t\t ___________________________________________________________________________________________\n");
+console.print("\t\t\t\t\t|                                           		                                    |\n");
+console.print("\t\t\t\t\t|                                           		                                    |\n");
+console.print("\t\t\t\t\t|                                           		                                    |\n");
+console.print("\t\t\t\t\t|                                           		                                    |\n");
+console.print("\t\t\t\t\t|                                           		                                    |\n");
+console.print("\t\t\t\t\t|                                           		                                    |\n");
+console.print("\t\t\t\t\t|                            WELCOME TO E-HEALTH CARE MANAGEMENT SYSTEM                     |\n");
+console.print("\t\t\t\t\t|                                                                                           |\n");
+console.print("\t\t\t\t\t|                                                                                           |\n");
+console.print("\t\t\t\t\t|                                                                                           |\n");
+console.print("\t\t\t\t\t|                                                                                           |\n");
+console.print("\t\t\t\t\t|                                                                                           |\n");
+console.print("\t\t\t\t\t|                                                                                           |\n");
+console.print("\t\t\t\t\t|                                         -Brought To You by                                |\n");
+console.print("\t\t\t\t\t|                                      	 Md Fahad,Omer Mohiuddin and Yaseen Hussain         |\n");
+console.print("\t\t\t\t\t|___________________________________________________________________________________________|\n");
 }
 //Declaring variales to be used
-Scanner scan=new Scanner(System.in);
+ConsoleIO console=new ConsoleIO(System.in,System.out);
 String name;
 String address;
 long contact;
@@ -37,63 +69,148 @@ String sex;
 String disease;
 long id;
 String dadm;
+//Lookup of patient files by ID, name and contact number
+PatientLookup index;
+//Patient records, kept in a single paged file; older per-patient files are copied in on first use
+RecordStore store;
+//Search across the diagnoses of all patients
+ClinicalSearch clinical;
+//Record operations shared with the headless API
+HospitalApi api;
+//Recently used patient records, kept parsed in memory
+CachingRecordStore cache;
+static final int CACHE_ENTRIES=100_000;
+//Entries shown per page of patient history
+static final int HISTORY_PAGE_SIZE=10;
+//Set by exit() to end the command loop
+boolean running=true;
 //To take a pause
 private void pressAnyKeyToContinue()
  { 
-        System.out.println("Press Enter key to continue...");
-        try
-        {
-            System.in.read();
-        }  
-        catch(Exception e)
-        {
-        System.out.println("Press 'Enter' key to continue!");
-        }  
+        console.println("Press Enter key to continue...");
+        console.pause();
  }
  //Taking multiple words
 String readString()
 {
-    Scanner scanner = new Scanner(System.in);
-    return scanner.nextLine();
-}
-//Log in Module
-void login()
-{
-   int a;
-   String pass;
-   System.out.print("\t\t\t\t\t _______________________________________________________________________________________ \n");
-   System.out.print("\n\t\t\t\t\t\t\t\tE-HEALTH CARE MANAGEMENT SYSTEM \n");
-   System.out.print("\t\t\t\t\t _______________________________________________________________________________________ \n");
-   System.out.println("\n\n\t\t\t\t\t\t\t\t------------------------------");
-   System.out.print("\n\t\t\t\t\t\t\t\t\t     LOGIN \n");	
-   System.out.print("\t\t\t\t\t\t\t\t------------------------------\n\n");	
-   System.out.print("\t\t\t\t\t\t\t\tEnter the Password: ");
-   pass=scan.next();
-   if(pass.equals("deccan"))
+    return console.readString();
+}
+//Working on the files in the current directory
+void openLocal() throws IOException
+{
+    index=openIndex();
+    store=openStore();
+    try
+    {
+        ClinicalIndex c=new ClinicalIndex(new File("clinical.log"));
+        store=new ClinicalIndexingStore(store,c);
+        clinical=c;
+    }
+    catch(IOException e)
+    {
+        console.println("Clinical index unavailable, clinical search is disabled: "+e.getMessage());
+    }
+    store=cache=new CachingRecordStore(store,CACHE_ENTRIES);
+    api=new HospitalApi(store,index);
+}
+//Working through the record server so other terminals can use the same patients
+void connect(int port) throws IOException
+{
+    RemoteRecordClient client=new RemoteRecordClient(port);
+    index=client;
+    store=cache=new CachingRecordStore(client,CACHE_ENTRIES);
+    clinical=client;
+    api=new HospitalApi(store,index);
+}
+//Opening the patient index kept next to the patient files
+PatientIndex openIndex()
+{
+    try
+    {
+        return new PatientIndex("patients");
+    }
+    catch(IOException e)
+    {
+        console.println("Patient index unavailable, search is disabled: "+e.getMessage());
+        return null;
+    }
+}
+//Opening the record store, falling back to the per-patient files if it cannot be opened
+RecordStore openStore() throws IOException
+{
+    RecordStore live;
+    try
+    {
+        live=new PagedRecordStore(new File("records.db"),1024,new FileRecordStore(new File(".")));
+    }
+    catch(IOException e)
+    {
+        //Falling back would hide every record kept in an existing store
+        if(new File("records.db").exists())
+            throw new IOException("records.db cannot be opened: "+e.getMessage(),e);
+        console.println("Record store unavailable, using patient files: "+e.getMessage());
+        live=new FileRecordStore(new File("."));
+    }
+    try
+    {
+        return new ArchivedRecordStore(live,new RecordArchive("archive"));
+    }
+    catch(IOException e)
+    {
+        console.println("Patient archive unavailable, archived patients cannot be read: "+e.getMessage());
+        return live;
+    }
+}
+//Reading a file name; "#<Patient ID>" picks the file registered for that ID
+String readFileName()
+{
+    String input=console.next();
+    if(!input.startsWith("#")||index==null)
+        return input;
+    try
+    {
+        List<PatientIndex.Entry> found=index.byId(Long.parseLong(input.substring(1)));
+        if(!found.isEmpty())
+            return found.get(0).fileName;
+        console.println("No patient registered with ID "+input.substring(1));
+    }
+    catch(NumberFormatException|IOException e)
+    {
+        console.println("Invalid patient ID '"+input.substring(1)+"'");
+    }
+    return input;
+}
+//Log in Module; false when the user chose to exit
+boolean login()
+{
+   while(true)
+   {
+   console.print("\t\t\t\t\t _______________________________________________________________________________________ \n");
+   console.print("\n\t\t\t\t\t\t\t\tE-HEALTH CARE MANAGEMENT SYSTEM \n");
+   console.print("\t\t\t\t\t _______________________________________________________________________________________ \n");
+   console.println("\n\n\t\t\t\t\t\t\t\t------------------------------");
+   console.print("\n\t\t\t\t\t\t\t\t\t     LOGIN \n");	
+   console.print("\t\t\t\t\t\t\t\t------------------------------\n\n");	
+   console.print("\t\t\t\t\t\t\t\tEnter the Password: ");
+   if(HospitalApi.authenticate(console.next()))
 	{
-      System.out.print("\n\n\t\t\t\t\t\t\t\tAccess Granted!\n");
+      console.print("\n\n\t\t\t\t\t\t\t\tAccess Granted!\n");
       pressAnyKeyToContinue();
+      return true;
   	}
-    else
-	{
-      System.out.print( "\n\n\t\t\t\t\t\t\t\tAccess Aborted...\n\t\t\t\t\t\t\t\t1.Try Again\n\n\t\t\t\t\t\t\t\t2.Exit");
-      System.out.print("\n\n\t\t\t\t\t\t\tEnter the option: ");
+      console.print( "\n\n\t\t\t\t\t\t\t\tAccess Aborted...\n\t\t\t\t\t\t\t\t1.Try Again\n\n\t\t\t\t\t\t\t\t2.Exit");
+      console.print("\n\n\t\t\t\t\t\t\tEnter the option: ");
       try{ 
-	a=scan.nextInt(); 
-      if(a==1)
-          login();
-      else if(a==2)
-          System.exit(0);
-      else
-        {
-         System.out.print("\n\n\t\t\t\t\t\tInvalid Choice\n");
-        }
+	int a=console.nextInt(); 
+      if(a==2)
+          return false;
+      else if(a!=1)
+         console.print("\n\n\t\t\t\t\t\tInvalid Choice\n");
 	}
 	catch(InputMismatchException e){
-	System.out.println("\n\n\t\t\t\t\t\t\t*Enter the correct option!*\n\n");
-	login();
+	console.println("\n\n\t\t\t\t\t\t\t*Enter the correct option!*\n\n");
 	}
-        }
+   }
 }
 //To get Date
  public void getCurrentTimeUsingDate() 
@@ -104,181 +221,209 @@ void login()
   
   }
 
+//Menu entries in display order: key, label and the action it runs.
+//Help and Exit keep their original keys 5 and 6 so existing scripts still work;
+//entries added later take the next free keys but are listed above them.
+final List<Command> commands=Arrays.asList(
+    new Command('1',"Add New Patient Record",this::patient),
+    new Command('2',"Add Diagnosis Information",this::diagnos),
+    new Command('3',"History of the Patient",this::history),
+    new Command('4',"Bill of the patient",this::bill),
+    new Command('7',"Search Patient",this::search),
+    new Command('8',"Clinical Search",this::clinicalSearch),
+    new Command('9',"Month-end Billing Run",this::monthEnd),
+    new Command('5',"Help",this::info),
+    new Command('6',"Exit",this::exit));
+final Map<Character,Runnable> dispatch=dispatchTable();
+
+Map<Character,Runnable> dispatchTable()
+{
+    Map<Character,Runnable> table=new HashMap<>();
+    for(Command c:commands)
+        table.put(c.key,c.action);
+    return table;
+}
+
 void menu()
 {
-char k;
+while(running)
+{
 //giving option to the user for their choice
-System.out.print("\t\t\t\t\t _______________________________________________________________________________________ \n");
-System.out.print("\n\n\t\t\t\t\t\t\t\t  E-HEALTH CARE MANAGEMENT SYSTEM \n\n");	
-System.out.print("\t\t\t\t\t _______________________________________________________________________________________ \n");
-System.out.print("\n\n\t\t\t\t\t\tPlease, Choose from the following Options: \n\n");
-System.out.print("\t\t\t\t\t\t _________________________________________________________________ \n");
-System.out.print("\t\t\t\t\t\t|                                           	                  |\n");
-System.out.print("\t\t\t\t\t\t|             1  >> Add New Patient Record                        |\n");
-System.out.print("\t\t\t\t\t\t|             2  >> Add Diagnosis Information                     |\n");
-System.out.print("\t\t\t\t\t\t|             3  >> History of the Patient                        |\n");
-System.out.print("\t\t\t\t\t\t|             4  >> Bill of the patient                           |\n");
-System.out.print("\t\t\t\t\t\t|             5  >> Help				              |\n");
-System.out.print("\t\t\t\t\t\t|             6  >> Exit		                          |\n");
-System.out.print("\t\t\t\t\t\t|_________________________________________________________________|\n\n");
-System.out.print("\t\t\t\t\t\tEnter your choice: ");
-k=scan.next().charAt(0);
-//if inputed choice is other than given choice
-switch(k)
-{
-case '1': patient();
-break;
-case '2': diagnos();
-break;
-case '3': history();
-break;
-case '4': bill();
-break;
-case '5': info();
-break;
-case '6': exit();
-break;
-default: System.out.print("\n\n\t\t\t\t\t\tInvalid Choice\n");
-  System.out.print("\t\t\t\t\t\tTry again...........\n\n");
-  menu();
-}
-menu();
+StringBuilder screen=new StringBuilder();
+screen.append("\t\t\t\t\t _______________________________________________________________________________________ \n");
+screen.append("\n\n\t\t\t\t\t\t\t\t  E-HEALTH CARE MANAGEMENT SYSTEM \n\n");	
+screen.append("\t\t\t\t\t _______________________________________________________________________________________ \n");
+screen.append("\n\n\t\t\t\t\t\tPlease, Choose from the following Options: \n\n");
+screen.append("\t\t\t\t\t\t _________________________________________________________________ \n");
+screen.append("\t\t\t\t\t\t|                                                                 |\n");
+for(Command c:commands)
+  screen.append(String.format("\t\t\t\t\t\t|             %c  >> %-46s|%n",c.key,c.label));
+screen.append("\t\t\t\t\t\t|_________________________________________________________________|\n\n");
+screen.append("\t\t\t\t\t\tEnter your choice: ");
+console.print(screen);
+try
+{
+  Runnable action=dispatch.get(console.next().charAt(0));
+  //if inputed choice is other than given choice
+  if(action==null)
+  {
+    console.print("\n\n\t\t\t\t\t\tInvalid Choice\n");
+    console.print("\t\t\t\t\t\tTry again...........\n\n");
+  }
+  else
+    action.run();
+}
+catch(InputMismatchException e)
+{
+  console.println("\n\n\t\t\t\t\t\t\t*Enter the correct value!*\n\n");
+}
+catch(NoSuchElementException e)
+{
+  //Input ended (e.g. a piped script ran out of commands)
+  running=false;
+}
+}
+console.flush();
 }
 void patient()
 {
-System.out.print("Enter the patient's file name: ");
+console.print("Enter the patient's file name: ");
 
-String fileName =scan.next();
+String fileName =console.next();
 getCurrentTimeUsingDate();  
 
         try {
-            // Assume default encoding.
-            FileWriter fileWriter = new FileWriter(fileName+".txt");
-
-            // Always wrap FileWriter in BufferedWriter.
-            BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-	    
-            // Note that write() does not automatically
-            // append a newline character.
-            System.out.print("\n********************************************************************\n");
-            bufferedWriter.write("Date of admission: "+dadm);
-            bufferedWriter.newLine();
-            System.out.print("\nName : ");name=readString();bufferedWriter.write("Name : "+name);
-            bufferedWriter.newLine();
-            System.out.print("\nAddress : ");address=readString();bufferedWriter.write("Address : "+address);
-            bufferedWriter.newLine();
-            System.out.print("\nContact Number : ");contact=scan.nextLong();bufferedWriter.write("Contact Number : "+contact);
-            bufferedWriter.newLine();
-            System.out.print("\nAge : ");age=scan.nextInt();bufferedWriter.write("Age : "+age);
-            bufferedWriter.newLine();
-            System.out.print("\nSex : ");sex=scan.next();bufferedWriter.write("Sex : "+sex);
-            bufferedWriter.newLine();
-            System.out.print("\nBlood Group : ");bg=scan.next();bufferedWriter.write("Blood Group : "+bg);
-            bufferedWriter.newLine();
-            System.out.print("\nAny Major disease suffered earlier : ");disease=readString();bufferedWriter.write("Any Major disease suffered earlier : "+disease);
-            bufferedWriter.newLine();
-            System.out.print("\nPatient ID : ");id=scan.nextLong();bufferedWriter.write("Patient ID : "+id);
-            bufferedWriter.newLine();
-            System.out.print("\n********************************************************************\n");
-            bufferedWriter.write("\n********************************************************************\n\n");
-            bufferedWriter.newLine();System.out.print("\nInformation Saved Successfully\n");
-
-            // Always close files.
-            bufferedWriter.close();
+            console.print("\n********************************************************************\n");
+            console.print("\nName : ");name=readString();
+            console.print("\nAddress : ");address=readString();
+            console.print("\nContact Number : ");contact=console.nextLong();
+            console.print("\nAge : ");age=console.nextInt();
+            console.print("\nSex : ");sex=console.next();
+            console.print("\nBlood Group : ");bg=console.next();
+            console.print("\nAny Major disease suffered earlier : ");disease=readString();
+            console.print("\nPatient ID : ");id=console.nextLong();
+            console.print("\n********************************************************************\n");
+            api.createPatient(fileName,name,address,contact,age,sex,bg,disease,id);
+            console.print("\nInformation Saved Successfully\n");
         }
         catch(IOException ex) 
 	{
-            System.out.println("Error writing to file '"+ fileName +"'");
+            console.println("Error writing to file '"+ fileName +"'");
         }
     pressAnyKeyToContinue();
 }
+//Printing the admission details and the latest entries of a patient record as one block
+void printRecord(String fileName) throws IOException
+{
+    HistoryPager recent=new HistoryPager(store,fileName,0,Long.MAX_VALUE,true);
+    StringBuilder out=new StringBuilder();
+    for(String line:store.read(fileName,0).lines())
+        out.append(line).append('\n');
+    if(recent.size()>HISTORY_PAGE_SIZE)
+        out.append("(latest "+HISTORY_PAGE_SIZE+" of "+recent.size()+" entries, newest first; see History of the Patient for the rest)\n");
+    if(recent.size()>0)
+        out.append(recent.page(0,HISTORY_PAGE_SIZE));
+    console.print(out);
+}
 void diagnos()
 {
     String symptom;
     String diagnosis;
     String medicine;
     String addmission;
-    String ward;
+    String ward="";
     String doctor;
     getCurrentTimeUsingDate();
-    System.out.print("\n\nEnter the patient's file name to be opened : ");
-    String fileName=scan.next();
-             // This will reference one line at a time
-    String line = null;
+    console.print("\n\nEnter the patient's file name (or #Patient ID) to be opened : ");
+    String fileName=readFileName();
     try {
-        // FileReader reads text files in the default encoding.
-            FileReader fileReader = new FileReader(fileName+".txt");
-
-            // Always wrap FileReader in BufferedReader.
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
-            System.out.println("\n\n\n\n\t\t\t\t........................................ Information about '"+fileName+"' ........................................\n\n\n\n");
-            while((line = bufferedReader.readLine()) != null) 
+            if(!store.exists(fileName))
             {
-                System.out.println(line);
-            }   
-
-            // Always close files.
-            bufferedReader.close();         
+                console.println("Unable to open file '" + fileName + "'");
+                return;
+            }
+            console.println("\n\n\n\n\t\t\t\t........................................ Information about '"+fileName+"' ........................................\n\n\n\n");
+            printRecord(fileName);
         //Appending data in file
-            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName+".txt", true)));
-            System.out.print("Adding more information in patient's file................on : "+dadm);
-            out.println("Description of the day:"+dadm);
-            System.out.print("\nDoctor appointed:");doctor=readString();out.println("Doctor appointed: "+doctor);
-            System.out.print("\nSymptoms : ");symptom=readString();out.println("Symptoms : "+symptom);
-            System.out.print("\nDiagnosis : "); diagnosis=readString();out.println("Diagnosis : "+diagnosis);
-            System.out.print("\nMedicines : ");medicine=readString(); out.println("Medicines : "+medicine);
-            System.out.print("\nAddmission Required? : "); 
-            addmission=readString();out.println("Addmission Required? : "+addmission); 
+            console.print("Adding more information in patient's file................on : "+dadm);
+            console.print("\nDoctor appointed:");doctor=readString();
+            console.print("\nSymptoms : ");symptom=readString();
+            console.print("\nDiagnosis : "); diagnosis=readString();
+            console.print("\nMedicines : ");medicine=readString();
+            console.print("\nAddmission Required? : "); 
+            addmission=readString();
             if(addmission.equals("Yes")||addmission.equals("Y"))
             {
-              System.out.print("\nType of ward : ");ward=readString(); out.println("Type of ward : "+ward);
-              out.println("\n*************************************************************************\n");
-            System.out.print(ward+" ward is alloted Successfully\n");
+              console.print("\nType of ward : ");ward=readString();
+            console.print(ward+" ward is alloted Successfully\n");
             }
-            else
-            {out.println("*************************************************************************\n");}
-    out.close();
+            api.appendDiagnosis(fileName,doctor,symptom,diagnosis,medicine,addmission,ward);
    pressAnyKeyToContinue(); 
         } 
-        catch(FileNotFoundException ex) {
-            System.out.println(
-                "Unable to open file '" + fileName + "'");                
-        }
         catch (IOException e) {
-                System.out.println("Error writing or Reading to file '"+ fileName +"'");
+                console.println("Error writing or Reading to file '"+ fileName +"'");
            }
 }
 
 void history()
    {
-           System.out.print("\n\nEnter the patient's file name to be opened : ");
-    String fileName=scan.next();
-             // This will reference one line at a time
-    String line = null;
+           console.print("\n\nEnter the patient's file name (or #Patient ID) to be opened : ");
+    String fileName=readFileName();
     try {
-        // FileReader reads text files in the default encoding.
-            FileReader fileReader = new FileReader(fileName+".txt");
-
-            // Always wrap FileReader in BufferedReader.
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
-            System.out.print("\n\n\n\n\t\t\t\t........................................ Full Medical History of '"+fileName+"' ........................................\n\n\n\n");
-            while((line = bufferedReader.readLine()) != null) 
+            if(!store.exists(fileName))
             {
-                System.out.println(line);
-            }   
-	   pressAnyKeyToContinue();
-            // Always close files.
-            bufferedReader.close();         
-        }
-        catch(FileNotFoundException ex) {
-            System.out.println(
-                "Unable to open file '" + fileName + "'");                
+                console.println("Unable to open file '" + fileName + "'");
+                return;
+            }
+            console.print("\nFrom date (dd/MM/yyyy, - for the beginning) : ");
+            long from=readDate(console.next(),false);
+            console.print("To date (dd/MM/yyyy, - for today) : ");
+            long to=readDate(console.next(),true);
+            console.print("Newest first? (Y/N) : ");
+            boolean newestFirst=console.next().equalsIgnoreCase("Y");
+            HistoryPager pager=new HistoryPager(store,fileName,from,to,newestFirst);
+            int pages=pager.pages(HISTORY_PAGE_SIZE);
+            int p=0;
+            String cmd;
+            do
+            {
+                StringBuilder screen=new StringBuilder();
+                screen.append("\n\n\n\n\t\t\t\t........................................ Medical History of '"+fileName+"' ........................................\n\n");
+                for(String line:store.read(fileName,0).lines())
+                    screen.append(line).append('\n');
+                screen.append(pager.page(p,HISTORY_PAGE_SIZE));
+                screen.append("\n\t\t\t\tPage "+(p+1)+" of "+pages+" ("+pager.size()+" entries)   [N]ext  [P]revious  [Q]uit : ");
+                console.print(screen);
+                cmd=console.next();
+                if(cmd.equalsIgnoreCase("N")&&p+1<pages)
+                    p++;
+                else if(cmd.equalsIgnoreCase("P")&&p>0)
+                    p--;
+            }
+            while(!cmd.equalsIgnoreCase("Q"));
         }
         catch(IOException ex) {
-            System.out.println(
+            console.println(
                 "Error reading file '" + fileName + "'");               
         }  
     }
+//Parsing a dd/MM/yyyy date into epoch milliseconds; "-" leaves the range open
+long readDate(String text,boolean endOfDay)
+{
+    if(text.equals("-"))
+        return endOfDay?Long.MAX_VALUE:0;
+    try
+    {
+        LocalDate d=LocalDate.parse(text,DateTimeFormatter.ofPattern("dd/MM/yyyy"));
+        LocalDateTime t=endOfDay?d.atTime(23,59,59,999_000_000):d.atStartOfDay();
+        return t.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+    catch(RuntimeException e)
+    {
+        console.println("Invalid date '"+text+"', ignoring it");
+        return endOfDay?Long.MAX_VALUE:0;
+    }
+}
 void bill()
 {
  getCurrentTimeUsingDate();
@@ -286,94 +431,3702 @@ void bill()
  double wcharge;
  double doc;
  double ser;
-System.out.println("\t\t\t\t\t\t _________________________________________________________________ ");
- System.out.print("\n\n\t\t\t\t\t\t\t\t  E-HEALTH CARE MANAGEMENT SYSTEM \n\n");
-System.out.println("\t\t\t\t\t\t _________________________________________________________________ ");
- System.out.print("Enter the patient's file name to get the Bill: ");
- String fileName=scan.next();
-             // This will reference one line at a time
-    String line = null;
+console.println("\t\t\t\t\t\t _________________________________________________________________ ");
+ console.print("\n\n\t\t\t\t\t\t\t\t  E-HEALTH CARE MANAGEMENT SYSTEM \n\n");
+console.println("\t\t\t\t\t\t _________________________________________________________________ ");
+ console.print("Enter the patient's file name (or #Patient ID) to get the Bill: ");
+ String fileName=readFileName();
     try {
-        // FileReader reads text files in the default encoding.
-            FileReader fileReader = new FileReader(fileName+".txt");
-            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName+".txt", true)));
-
-            // Always wrap FileReader in BufferedReader.
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
-            System.out.print("Date: "+dadm);
-            System.out.println("\n\n\n\n\t\t\t\tDetails of the patient:\n\n\n\n");
-            while((line = bufferedReader.readLine()) != null) 
-            {
-                System.out.println(line);
-            }   
-             System.out.print("\t\t\t\t\t\t _________________________________________________________________ ");
-             System.out.println("\n\t\t\t\t\t\t\t\t\tBill of the patient:");
-             System.out.print("\t\t\t\t\t\t _________________________________________________________________ \n\n");
-             System.out.print("\t\t\t\t\t\tNo.of days patient stayed:");days=scan.nextInt();
-             System.out.print("\t\t\t\t\t\tWard charges/day:");wcharge=scan.nextDouble();
-             System.out.print("\n\t\t\t\t\t\tTotal ward charges:"+(wcharge*days));
-             System.out.print("\n\t\t\t\t\t\tDoctor's fee:");doc=scan.nextDouble();
-             System.out.print("\n\t\t\t\t\t\tService charges:");ser=scan.nextDouble();
-             System.out.print("\n\t\t\t\t\t\tTOTAL AMOUNT:"+((wcharge*days)+doc+ser));
-             out.println("Total Bill:"+((wcharge*days)+doc+ser));
-             System.out.print("\n\t\t\t\t\t\t _________________________________________________________________ \n");
-            // Always close files.
-            out.close();
-            bufferedReader.close();         
-        }
-        catch(FileNotFoundException ex) {
-            System.out.println(
-                "Unable to open file '" + fileName + "'");                
+            if(!store.exists(fileName))
+            {
+                console.println("Unable to open file '" + fileName + "'");
+                pressAnyKeyToContinue();
+                return;
+            }
+            console.print("Date: "+dadm);
+            console.println("\n\n\n\n\t\t\t\tDetails of the patient:\n\n\n\n");
+            printRecord(fileName);
+             console.print("\t\t\t\t\t\t _________________________________________________________________ ");
+             console.println("\n\t\t\t\t\t\t\t\t\tBill of the patient:");
+             console.print("\t\t\t\t\t\t _________________________________________________________________ \n\n");
+             console.print("\t\t\t\t\t\tNo.of days patient stayed:");days=console.nextInt();
+             console.print("\t\t\t\t\t\tWard charges/day:");wcharge=console.nextDouble();
+             console.print("\n\t\t\t\t\t\tTotal ward charges:"+(wcharge*days));
+             console.print("\n\t\t\t\t\t\tDoctor's fee:");doc=console.nextDouble();
+             console.print("\n\t\t\t\t\t\tService charges:");ser=console.nextDouble();
+             console.print("\n\t\t\t\t\t\tTOTAL AMOUNT:"+((wcharge*days)+doc+ser));
+             api.computeBill(fileName,days,wcharge,doc,ser);
+             console.print("\n\t\t\t\t\t\t _________________________________________________________________ \n");
         }
         catch(IOException ex) {
-            System.out.println(
+            console.println(
                 "Error reading file '" + fileName + "'");               
         }
  pressAnyKeyToContinue();
 }
+void search()
+{
+ if(index==null)
+ {
+  console.println("\n\t\t\t\t\t\tPatient index is not available.");
+  pressAnyKeyToContinue();
+  return;
+ }
+ console.print("\n\t\t\t\t\t\tSearch by  1.Patient ID  2.Name  3.Contact Number : ");
+ String by=console.next();
+ console.print("\t\t\t\t\t\tEnter the value to search: ");
+ String value=console.nextLine().trim();
+ if(value.isEmpty())
+  value=console.nextLine().trim();
+ try
+ {
+  List<PatientIndex.Entry> found;
+  if(by.equals("1"))
+   found=index.byId(Long.parseLong(value));
+  else if(by.equals("2"))
+   found=index.byNamePrefix(value);
+  else if(by.equals("3"))
+   found=index.byContact(Long.parseLong(value));
+  else
+  {
+   console.print("\n\n\t\t\t\t\t\tInvalid Choice\n");
+   return;
+  }
+  console.println("\n\t\t\t\t\t\t"+found.size()+" patient(s) found");
+  for(PatientIndex.Entry e:found)
+   console.println("\t\t\t\t\t\t"+e);
+ }
+ catch(NumberFormatException e)
+ {
+  console.println("\n\t\t\t\t\t\t*Enter a valid number!*");
+ }
+ catch(IOException e)
+ {
+  console.println("Error reading the patient index");
+ }
+ pressAnyKeyToContinue();
+}
+void clinicalSearch()
+{
+ if(clinical==null)
+ {
+  console.println("\n\t\t\t\t\t\tClinical index is not available.");
+  pressAnyKeyToContinue();
+  return;
+ }
+ console.print("\n\t\t\t\t\t\t1.Patients by medicine  2.Patients by diagnosis  3.Patients by symptom  4.Cases by diagnosis per ward : ");
+ String by=console.next();
+ console.print("\t\t\t\t\t\tLast how many days? : ");
+ long from;
+ try
+ {
+  from=System.currentTimeMillis()-Long.parseLong(console.next())*24L*60*60*1000;
+ }
+ catch(NumberFormatException e)
+ {
+  console.println("\n\t\t\t\t\t\t*Enter a valid number!*");
+  return;
+ }
+ StringBuilder out=new StringBuilder();
+ try
+ {
+  long start=System.nanoTime();
+  if(by.equals("4"))
+  {
+   for(Map.Entry<String,Map<String,Integer>> w:clinical.casesByWard(from,Long.MAX_VALUE).entrySet())
+   {
+    out.append("\n\t\t\t\t\t\tWard: ").append(w.getKey()).append('\n');
+    for(Map.Entry<String,Integer> d:w.getValue().entrySet())
+     out.append("\t\t\t\t\t\t   ").append(d.getKey()).append(" : ").append(d.getValue()).append('\n');
+   }
+  }
+  else
+  {
+   String field=by.equals("1")?ClinicalSearch.MEDICINE:by.equals("2")?ClinicalSearch.DIAGNOSIS:ClinicalSearch.SYMPTOM;
+   console.print("\t\t\t\t\t\tSearch for : ");
+   String term=console.nextLine().trim();
+   if(term.isEmpty())
+    term=console.nextLine().trim();
+   Set<String> found=clinical.patients(field,term,from,Long.MAX_VALUE);
+   out.append("\n\t\t\t\t\t\t").append(found.size()).append(" patient file(s)\n");
+   for(String f:found)
+    out.append("\t\t\t\t\t\t   ").append(f).append('\n');
+  }
+  out.append(String.format("\t\t\t\t\t\t(%.1f ms)%n",(System.nanoTime()-start)/1e6));
+  console.print(out);
+ }
+ catch(IOException e)
+ {
+  console.println("Error searching the clinical index: "+e.getMessage());
+ }
+ pressAnyKeyToContinue();
+}
+void monthEnd()
+{
+ console.print("\n\t\t\t\t\t\tAdd the invoices to the patient records as bills? (Y/N) : ");
+ boolean post=console.next().equalsIgnoreCase("Y");
+ File ledger=new File("ledger-"+DateTimeFormatter.ofPattern("yyyy-MM").format(LocalDateTime.now())+".csv");
+ try
+ {
+  BillingRun run=new BillingRun(store,RateTable.load(new File("rates.txt")),Runtime.getRuntime().availableProcessors());
+  long start=System.nanoTime();
+  run.run(ledger,post);
+  double secs=(System.nanoTime()-start)/1e9;
+  console.printf("%n\t\t\t\t\t\tPatients scanned   : %d%n\t\t\t\t\t\tInvoices written   : %d (%s)%n\t\t\t\t\t\tFailed records     : %d%n\t\t\t\t\t\tTotal amount       : %.2f%n\t\t\t\t\t\tTime               : %.2f s (%.0f patients/s)%n",
+   run.scanned.get(),run.billed.get(),ledger.getName(),run.failed.get(),run.amount.sum(),secs,run.scanned.get()/Math.max(secs,1e-9));
+ }
+ catch(IOException e)
+ {
+  console.println("Billing run failed: "+e.getMessage());
+ }
+ catch(InterruptedException e)
+ {
+  Thread.currentThread().interrupt();
+ }
+ pressAnyKeyToContinue();
+}
 void exit()
 {
-System.out.print("\n\n\n\n\n\n\n\n\n\n\n\n\t\t\t\t\t\n");
-System.out.print("\t\t\t\t\t _______________________________________________________________________________________ \n");
-System.out.print("\t\t\t\t\t|                                           		                                |\n");
-System.out.print("\t\t\t\t\t|                                           		                                |\n");
-System.out.print("\t\t\t\t\t|                                           		                                |\n");
-System.out.print("\t\t\t\t\t|                                           		                                |\n");
-System.out.print("\t\t\t\t\t|                                           		                                |\n");
-System.out.print("\t\t\t\t\t|                               THANK YOU FOR USING                                     |\n");
-System.out.print("\t\t\t\t\t|                                                                                       |\n");
-System.out.print("\t\t\t\t\t|                            E-HEALTH CARE MANAGEMENT SYSTEM                            |\n");
-System.out.print("\t\t\t\t\t|                                                                                       |\n");
-System.out.print("\t\t\t\t\t|                                                                                       |\n");
-System.out.print("\t\t\t\t\t|                                                                                       |\n");
-System.out.print("\t\t\t\t\t|                                                                                       |\n");
-System.out.print("\t\t\t\t\t|                                                                                       |\n");
-System.out.print("\t\t\t\t\t|                                              -Brought To You by Fahad,Omer and Yaseen |\n");
-System.out.print("\t\t\t\t\t|_______________________________________________________________________________________|\n");
-System.out.print("\t\t\t\t\t\n\n\n\n\t\t\t\t\t");
-System.exit(0);
+console.print("\n\n\n\n\n\n\n\n\n\n\n\n\t\t\t\t\t\n");
+console.print("\t\t\t\t\t _______________________________________________________________________________________ \n");
+console.print("\t\t\t\t\t|                                           		                                |\n");
+console.print("\t\t\t\t\t|                                           		                                |\n");
+console.print("\t\t\t\t\t|                                           		                                |\n");
+console.print("\t\t\t\t\t|                                           		                                |\n");
+console.print("\t\t\t\t\t|                                           		                                |\n");
+console.print("\t\t\t\t\t|                               THANK YOU FOR USING                                     |\n");
+console.print("\t\t\t\t\t|                                                                                       |\n");
+console.print("\t\t\t\t\t|                            E-HEALTH CARE MANAGEMENT SYSTEM                            |\n");
+console.print("\t\t\t\t\t|                                                                                       |\n");
+console.print("\t\t\t\t\t|                                                                                       |\n");
+console.print("\t\t\t\t\t|                                                                                       |\n");
+console.print("\t\t\t\t\t|                                                                                       |\n");
+console.print("\t\t\t\t\t|                                                                                       |\n");
+console.print("\t\t\t\t\t|                                              -Brought To You by Fahad,Omer and Yaseen |\n");
+console.print("\t\t\t\t\t|_______________________________________________________________________________________|\n");
+console.print("\t\t\t\t\t\n\n\n\n\t\t\t\t\t");
+console.flush();
+running=false;
 }
 void info()
 {
-	System.out.println("\n\nE-Health care management system is command-driven application that helps to manage the record of the patient's as well as generate their hospital bills.");
-	System.out.print("\t\t\t\t__________________________________________________________________________________________________________________________________\n");
-	System.out.print("\t\t\t\t\tOptions		             | Description\n");
-	System.out.print("\t\t\t\t__________________________________________________________________________________________________________________________________\n");
-	System.out.println("\t\t\t\t 1 >> Add New Patient Record         | A new patient file can be created by using this module.");
-	System.out.println("\t\t\t\t 2 >> Add Diagnosis Information      | Adding day-to-day evaluation of the patient or the diagnosis report in the existing file.");
-	System.out.println("\t\t\t\t 3 >> History of the Patient         | Check the previous or existing details of particular patient by using their file name.");
-	System.out.println("\t\t\t\t 4 >> Bill of the patient            | Generates the bill of the patient with displaying the details.");        
-	System.out.println("\t\t\t\t 5 >> Help			     | Provide the help documentation.");    
-	System.out.println("\t\t\t\t 6 >> Exit		             | Exits the application.");
+	console.println("\n\nE-Health care management system is command-driven application that helps to manage the record of the patient's as well as generate their hospital bills.");
+	console.print("\t\t\t\t__________________________________________________________________________________________________________________________________\n");
+	console.print("\t\t\t\t\tOptions		             | Description\n");
+	console.print("\t\t\t\t__________________________________________________________________________________________________________________________________\n");
+	console.println("\t\t\t\t 1 >> Add New Patient Record         | A new patient file can be created by using this module.");
+	console.println("\t\t\t\t 2 >> Add Diagnosis Information      | Adding day-to-day evaluation of the patient or the diagnosis report in the existing file.");
+	console.println("\t\t\t\t 3 >> History of the Patient         | Check the previous or existing details of particular patient by using their file name.");
+	console.println("\t\t\t\t 4 >> Bill of the patient            | Generates the bill of the patient with displaying the details.");        
+	console.println("\t\t\t\t 7 >> Search Patient                 | Finds patient files by patient ID, name prefix or contact number.");
+	console.println("\t\t\t\t 8 >> Clinical Search                | Finds patients by medicine, diagnosis or symptom and counts cases per ward.");
+	console.println("\t\t\t\t 9 >> Month-end Billing Run          | Bills every patient with unbilled visits using rates.txt and writes the month's ledger file.");
+	console.println("\t\t\t\t 5 >> Help                           | Provide the help documentation.");    
+	console.println("\t\t\t\t 6 >> Exit                           | Exits the application.");
+	if(cache!=null)
+	console.println("\n\t\t\t\t Record cache: "+cache.stats());
     pressAnyKeyToContinue();
 }
 }
-public class Ehospital
+//One entry of a patient record: the admission details, a day's diagnosis or a bill.
+//Every type has a fixed list of labels; values are kept in the same order and the
+//labels are only used to print the entry the way the old text files looked.
+class RecordEntry
 {
-public static void main (String args[])
+    static final byte DEMOGRAPHICS=1;
+    static final byte VISIT=2;
+    static final byte BILL=3;
+
+    static final String[] DEMOGRAPHIC_LABELS={"Date of admission: ","Name : ","Address : ","Contact Number : ","Age : ","Sex : ","Blood Group : ","Any Major disease suffered earlier : ","Patient ID : "};
+    static final String[] VISIT_LABELS={"Description of the day:","Doctor appointed: ","Symptoms : ","Diagnosis : ","Medicines : ","Addmission Required? : ","Type of ward : "};
+    static final String[] BILL_LABELS={"Date: ","No.of days patient stayed:","Ward charges/day:","Doctor's fee:","Service charges:","Total Bill:"};
+    static final String SEPARATOR="********************************************************************";
+
+    final byte type;
+    //Epoch milliseconds of the entry, used for ordering and date range lookups
+    final long time;
+    final String[] values;
+
+    RecordEntry(byte type,long time,String[] values)
+    {
+        this.type=type;
+        this.time=time;
+        this.values=values;
+    }
+
+    static RecordEntry demographics(String dadm,String name,String address,long contact,int age,String sex,String bg,String disease,long id)
+    {
+        return new RecordEntry(DEMOGRAPHICS,parseTime(dadm),new String[]{dadm,name,address,String.valueOf(contact),String.valueOf(age),sex,bg,disease,String.valueOf(id)});
+    }
+
+    static RecordEntry visit(String date,String doctor,String symptom,String diagnosis,String medicine,String addmission,String ward)
+    {
+        return new RecordEntry(VISIT,parseTime(date),new String[]{date,doctor,symptom,diagnosis,medicine,addmission,ward});
+    }
+
+    static RecordEntry bill(String date,int days,double wcharge,double doc,double ser)
+    {
+        return new RecordEntry(BILL,parseTime(date),new String[]{date,String.valueOf(days),String.valueOf(wcharge),String.valueOf(doc),String.valueOf(ser),String.valueOf((wcharge*days)+doc+ser)});
+    }
+
+    static String[] labels(byte type)
+    {
+        switch(type)
+        {
+        case DEMOGRAPHICS: return DEMOGRAPHIC_LABELS;
+        case VISIT: return VISIT_LABELS;
+        case BILL: return BILL_LABELS;
+        default: throw new IllegalArgumentException("Unknown entry type "+type);
+        }
+    }
+
+    String value(String label)
+    {
+        String[] labels=labels(type);
+        for(int i=0;i<labels.length&&i<values.length;i++)
+            if(labels[i].equals(label))
+                return values[i];
+        return "";
+    }
+
+    //Lines as they appeared in the old text files
+    List<String> lines()
+    {
+        String[] labels=labels(type);
+        List<String> out=new ArrayList<>();
+        for(int i=0;i<labels.length&&i<values.length;i++)
+        {
+            if(values[i].isEmpty()&&(type==BILL||(type==VISIT&&i==6)))
+                continue;
+            out.add(labels[i]+values[i]);
+        }
+        if(type!=BILL)
+        {
+            out.add(SEPARATOR);
+            out.add("");
+        }
+        return out;
+    }
+
+    void write(DataOutputStream out) throws IOException
+    {
+        out.writeByte(type);
+        out.writeLong(time);
+        out.writeShort(values.length);
+        for(String v:values)
+            out.writeUTF(v==null?"":v);
+    }
+
+    static RecordEntry read(DataInputStream in) throws IOException
+    {
+        byte type=in.readByte();
+        long time=in.readLong();
+        String[] values=new String[in.readShort()];
+        for(int i=0;i<values.length;i++)
+            values[i]=in.readUTF();
+        return new RecordEntry(type,time,values);
+    }
+
+    byte[] toBytes()
+    {
+        try
+        {
+            ByteArrayOutputStream buf=new ByteArrayOutputStream(128);
+            write(new DataOutputStream(buf));
+            return buf.toByteArray();
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static RecordEntry fromBytes(byte[] b,int off,int len) throws IOException
+    {
+        return read(new DataInputStream(new ByteArrayInputStream(b,off,len)));
+    }
+
+    static long parseTime(String date)
+    {
+        try
+        {
+            return LocalDateTime.parse(date.trim(),DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss")).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        catch(RuntimeException e)
+        {
+            return 0;
+        }
+    }
+
+    //Converting an old free-text patient file into entries
+    static List<RecordEntry> fromText(List<String> lines)
+    {
+        List<RecordEntry> out=new ArrayList<>();
+        RecordEntry current=null;
+        long lastTime=0;
+        for(String raw:lines)
+        {
+            String line=raw.trim();
+            if(line.startsWith(DEMOGRAPHIC_LABELS[0].trim()))
+                current=start(out,DEMOGRAPHICS,line.substring(DEMOGRAPHIC_LABELS[0].trim().length()).trim());
+            else if(line.startsWith(VISIT_LABELS[0]))
+                current=start(out,VISIT,line.substring(VISIT_LABELS[0].length()).trim());
+            else if(line.startsWith(BILL_LABELS[5]))
+            {
+                RecordEntry b=new RecordEntry(BILL,lastTime,new String[]{"","","","","",line.substring(BILL_LABELS[5].length()).trim()});
+                out.add(b);
+                current=null;
+            }
+            else if(current!=null)
+            {
+                String[] labels=labels(current.type);
+                for(int i=1;i<labels.length;i++)
+                    if(line.startsWith(labels[i].trim()))
+                    {
+                        current.values[i]=line.substring(labels[i].trim().length()).trim();
+                        break;
+                    }
+            }
+            if(current!=null&&current.time!=0)
+                lastTime=current.time;
+        }
+        return out;
+    }
+
+    private static RecordEntry start(List<RecordEntry> out,byte type,String date)
+    {
+        String[] values=new String[labels(type).length];
+        Arrays.fill(values,"");
+        values[0]=date;
+        RecordEntry e=new RecordEntry(type,parseTime(date),values);
+        out.add(e);
+        return e;
+    }
+}
+
+//Storage of patient records, addressed by the patient's file name
+interface RecordStore
 {
-  Info i=new Info();
-  i.login();
-  i.menu();
+    boolean exists(String key) throws IOException;
+    //Starts (or replaces) a record with its admission details
+    void create(String key,RecordEntry demographics) throws IOException;
+    void append(String key,RecordEntry entry) throws IOException;
+    int count(String key) throws IOException;
+    //Random access to the i-th entry, 0 being the admission details
+    RecordEntry read(String key,int i) throws IOException;
+    List<String> keys() throws IOException;
+    //Changes whenever the record is appended to or replaced, by anyone; used to validate caches
+    default long stamp(String key) throws IOException
+    {
+        return count(key);
+    }
+    //Creating many records at once; stores that can, write them as one batch
+    default void createAll(List<String> keys,List<RecordEntry> demographics) throws IOException
+    {
+        for(int i=0;i<keys.size();i++)
+            create(keys.get(i),demographics.get(i));
+    }
+    //Appending one entry to each of many records; stores that can, write them as one batch
+    default void appendAll(List<String> keys,List<RecordEntry> entries) throws IOException
+    {
+        for(int i=0;i<keys.size();i++)
+            append(keys.get(i),entries.get(i));
+    }
+    //Deleting a record, used when it is moved to the archive
+    default void remove(String key) throws IOException
+    {
+        throw new IOException(getClass().getSimpleName()+" cannot remove records");
+    }
+}
+
+//One binary file per patient. "<key>.rec" holds a versioned header followed by
+//length-prefixed entries and "<key>.rex" holds the offset of every entry, so any
+//entry is reached with two positional reads. Old "<key>.txt" files are converted
+//the first time they are opened.
+class FileRecordStore implements RecordStore
+{
+    static final int MAGIC=0x45485231;
+    static final short VERSION=1;
+    private static final int HEADER=6;
+    private final File dir;
+
+    FileRecordStore(File dir)
+    {
+        this.dir=dir;
+    }
+
+    private File rec(String key)
+    {
+        return new File(dir,key+".rec");
+    }
+
+    private File rex(String key)
+    {
+        return new File(dir,key+".rex");
+    }
+
+    public boolean exists(String key) throws IOException
+    {
+        return rec(key).exists()||convert(key);
+    }
+
+    public void create(String key,RecordEntry demographics) throws IOException
+    {
+        try(DataOutputStream out=new DataOutputStream(new FileOutputStream(rec(key))))
+        {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+        }
+        new FileOutputStream(rex(key)).close();
+        append(key,demographics);
+    }
+
+    public void append(String key,RecordEntry entry) throws IOException
+    {
+        if(!exists(key))
+            throw new FileNotFoundException(key);
+        byte[] body=entry.toBytes();
+        try(RandomAccessFile r=new RandomAccessFile(rec(key),"rw");RandomAccessFile x=new RandomAccessFile(rex(key),"rw"))
+        {
+            long pos=r.length();
+            ByteBuffer frame=ByteBuffer.allocate(4+body.length);
+            frame.putInt(body.length).put(body);
+            r.seek(pos);
+            r.write(frame.array());
+            //The offset goes last: an entry is only visible once it is complete
+            x.seek(x.length()&~7L);
+            x.writeLong(pos);
+        }
+    }
+
+    public int count(String key) throws IOException
+    {
+        if(!exists(key))
+            throw new FileNotFoundException(key);
+        return (int)(rex(key).length()/8);
+    }
+
+    //Another process appending or replacing the file changes its length or modification time
+    public long stamp(String key) throws IOException
+    {
+        File f=rec(key);
+        if(!f.exists()&&!exists(key))
+            throw new FileNotFoundException(key);
+        return f.length()*31+f.lastModified();
+    }
+
+    public RecordEntry read(String key,int i) throws IOException
+    {
+        try(RandomAccessFile r=new RandomAccessFile(rec(key),"r");RandomAccessFile x=new RandomAccessFile(rex(key),"r"))
+        {
+            checkHeader(r,key);
+            x.seek((long)i*8);
+            r.seek(x.readLong());
+            byte[] body=new byte[r.readInt()];
+            r.readFully(body);
+            return RecordEntry.fromBytes(body,0,body.length);
+        }
+    }
+
+    //The text backup goes as well, otherwise the record would be converted again
+    public void remove(String key) throws IOException
+    {
+        for(File f:new File[]{rec(key),rex(key),new File(dir,key+".txt")})
+            if(f.exists()&&!f.delete())
+                throw new IOException("Unable to delete "+f);
+    }
+
+    public List<String> keys()
+    {
+        List<String> out=new ArrayList<>();
+        String[] names=dir.list();
+        if(names!=null)
+            for(String n:names)
+                if(n.endsWith(".rec"))
+                    out.add(n.substring(0,n.length()-4));
+        return out;
+    }
+
+    private void checkHeader(RandomAccessFile r,String key) throws IOException
+    {
+        if(r.readInt()!=MAGIC)
+            throw new IOException("'"+key+"' is not a patient record");
+        short v=r.readShort();
+        if(v>VERSION)
+            throw new IOException("'"+key+"' uses record format "+v+", newer than this program");
+    }
+
+    //Converting "<key>.txt" if present; the text file is kept as a backup
+    boolean convert(String key) throws IOException
+    {
+        File txt=new File(dir,key+".txt");
+        if(!txt.exists())
+            return false;
+        List<RecordEntry> entries=RecordEntry.fromText(Files.readAllLines(txt.toPath()));
+        if(entries.isEmpty()||entries.get(0).type!=RecordEntry.DEMOGRAPHICS)
+            return false;
+        create(key,entries.get(0));
+        for(int i=1;i<entries.size();i++)
+            append(key,entries.get(i));
+        return true;
+    }
+
+    //Converting every old text file in the directory, returns how many were converted
+    int convertAll() throws IOException
+    {
+        int n=0;
+        String[] names=dir.list();
+        if(names!=null)
+            for(String f:names)
+                if(f.endsWith(".txt")&&!rec(f.substring(0,f.length()-4)).exists()&&convert(f.substring(0,f.length()-4)))
+                    n++;
+        return n;
+    }
+}
+
+//All patient records in one paged data file ("records.db") with a write-ahead log.
+//Pages are PAGE bytes: a next-page link, a used-bytes counter and the payload. Each
+//record owns a chain of data pages (length-prefixed entries, allowed to run over into
+//the next page) and a chain of offset pages (the address of every entry), both found
+//through a catalog slot. Every change writes full page images to the log and forces
+//it before the pages reach the data file, so a crash loses at most the entry being
+//written; the log is replayed on open and emptied at checkpoints. Pages of removed or
+//replaced records go to a free list and are handed out again before the file grows.
+//The data file is locked while the store is open: each opener has its own catalog,
+//buffer pool and log, so a second one (a server, a terminal or a maintenance command)
+//is refused instead of overwriting the first one's pages.
+class PagedRecordStore implements RecordStore
+{
+    static final int PAGE=4096;
+    static final int MAGIC=0x45485044;
+    static final int VERSION=1;
+    private static final int TXN=0x54584e31;
+    private static final int PAGE_HEADER=8;
+    private static final int SLOT=64;
+    static final int MAX_KEY=SLOT-22;
+    private static final int SLOTS_PER_PAGE=(PAGE-PAGE_HEADER)/SLOT;
+    private static final int OFFSETS_PER_PAGE=(PAGE-PAGE_HEADER)/8;
+    private static final long CHECKPOINT_BYTES=8L<<20;
+
+    private static class Page
+    {
+        final int no;
+        final ByteBuffer buf;
+        Page(int no,byte[] data)
+        {
+            this.no=no;
+            this.buf=ByteBuffer.wrap(data);
+        }
+        int next() { return buf.getInt(0); }
+        int used() { return buf.getInt(4); }
+    }
+
+    //Catalog entry of one record, mirrored in a slot on a catalog page
+    private static class Meta
+    {
+        int slotPage;
+        int slotOffset;
+        int dataHead,dataTail,offHead,offTail,count;
+    }
+
+    private final RandomAccessFile data;
+    private final RandomAccessFile wal;
+    private final RecordStore legacy;
+    private final Map<String,Meta> catalog=new HashMap<>();
+    private final Map<Integer,Page> pool;
+    private final Map<Integer,Page> dirty=new LinkedHashMap<>();
+    private long hits,misses;
+
+    //legacy, when not null, is consulted for records not yet in this store and copied in
+    PagedRecordStore(File file,int poolPages,RecordStore legacy) throws IOException
+    {
+        this.legacy=legacy;
+        pool=new LinkedHashMap<Integer,Page>(poolPages,0.75f,true)
+        {
+            protected boolean removeEldestEntry(Map.Entry<Integer,Page> eldest)
+            {
+                return size()>poolPages;
+            }
+        };
+        data=new RandomAccessFile(file,"rw");
+        try
+        {
+            lock(data.getChannel(),file);
+        }
+        catch(IOException e)
+        {
+            data.close();
+            throw e;
+        }
+        wal=new RandomAccessFile(file.getPath()+".wal","rw");
+        //Checked before the log is replayed, so a store this program cannot read is left as it is
+        if(data.length()>=24)
+        {
+            byte[] head=new byte[24];
+            data.seek(0);
+            data.readFully(head);
+            checkHeader(file,ByteBuffer.wrap(head));
+        }
+        recover();
+        if(data.length()==0)
+        {
+            Page h=page(0);
+            h.buf.putInt(0,MAGIC).putInt(4,VERSION).putInt(8,1).putInt(12,0).putInt(16,0).putInt(20,PAGE).putInt(24,0);
+            markDirty(h);
+            commit();
+        }
+        checkHeader(file,page(0).buf);
+        loadCatalog();
+    }
+
+    //Taking the exclusive lock that marks file as in use; it is released when channel is closed
+    static FileLock lock(FileChannel channel,File file) throws IOException
+    {
+        FileLock lock;
+        try
+        {
+            lock=channel.tryLock();
+        }
+        catch(OverlappingFileLockException e)
+        {
+            lock=null;
+        }
+        if(lock==null)
+            throw new IOException(file+" is in use by another program (a record server, a terminal or a maintenance command); stop it first");
+        return lock;
+    }
+
+    //Stores written before the page size was recorded have 0 there and 4 KB pages
+    private static void checkHeader(File file,ByteBuffer h) throws IOException
+    {
+        if(h.getInt(0)!=MAGIC)
+            throw new IOException(file+" is not a patient record store");
+        if(h.getInt(4)>VERSION)
+            throw new IOException(file+" uses store format "+h.getInt(4)+", newer than this program");
+        int pageSize=h.getInt(20)==0?4096:h.getInt(20);
+        if(pageSize!=PAGE)
+            throw new IOException(file+" uses "+pageSize+" byte pages, expected "+PAGE);
+    }
+
+    public synchronized boolean exists(String key) throws IOException
+    {
+        return catalog.containsKey(key)||importLegacy(key);
+    }
+
+    public synchronized void create(String key,RecordEntry demographics) throws IOException
+    {
+        checkKey(key);
+        createEntry(key,demographics);
+        commit();
+    }
+
+    //All records of the batch go to the log as a single transaction. Unlike create, a batch
+    //never replaces a record: it is refused whole if a name is taken or given twice
+    public synchronized void createAll(List<String> keys,List<RecordEntry> demographics) throws IOException
+    {
+        Set<String> batch=new HashSet<>();
+        for(String key:keys)
+        {
+            checkKey(key);
+            if(!batch.add(key)||exists(key))
+                throw new IOException("Record '"+key+"' already exists");
+        }
+        for(int i=0;i<keys.size();i++)
+            createEntry(keys.get(i),demographics.get(i));
+        commit();
+    }
+
+    private static void checkKey(String key) throws IOException
+    {
+        if(key.getBytes(StandardCharsets.UTF_8).length>MAX_KEY)
+            throw new IOException("File name '"+key+"' is longer than "+MAX_KEY+" bytes");
+    }
+
+    private void createEntry(String key,RecordEntry demographics) throws IOException
+    {
+        byte[] k=key.getBytes(StandardCharsets.UTF_8);
+        Meta m=catalog.get(key);
+        if(m==null)
+            m=newSlot(k);
+        else
+            release(m);
+        m.dataHead=m.dataTail=allocate().no;
+        m.offHead=m.offTail=allocate().no;
+        m.count=0;
+        catalog.put(key,m);
+        appendEntry(m,demographics);
+    }
+
+    public synchronized void append(String key,RecordEntry entry) throws IOException
+    {
+        if(!exists(key))
+            throw new FileNotFoundException(key);
+        appendEntry(catalog.get(key),entry);
+        commit();
+    }
+
+    //All entries go to the log as a single transaction, forced once; the batch is refused
+    //whole if one of its records does not exist
+    public synchronized void appendAll(List<String> keys,List<RecordEntry> entries) throws IOException
+    {
+        for(String key:keys)
+            if(!exists(key))
+                throw new FileNotFoundException(key);
+        for(int i=0;i<keys.size();i++)
+            appendEntry(catalog.get(keys.get(i)),entries.get(i));
+        commit();
+    }
+
+    public synchronized int count(String key) throws IOException
+    {
+        if(!exists(key))
+            throw new FileNotFoundException(key);
+        return catalog.get(key).count;
+    }
+
+    //A replaced record gets new pages, so the head page tells replacements apart
+    public synchronized long stamp(String key) throws IOException
+    {
+        if(!exists(key))
+            throw new FileNotFoundException(key);
+        Meta m=catalog.get(key);
+        return ((long)m.dataHead<<32)|m.count;
+    }
+
+    public synchronized RecordEntry read(String key,int i) throws IOException
+    {
+        if(!exists(key))
+            throw new FileNotFoundException(key);
+        Meta m=catalog.get(key);
+        if(i<0||i>=m.count)
+            throw new IndexOutOfBoundsException("Entry "+i+" of "+m.count);
+        Page p=page(m.offHead);
+        for(int skip=i/OFFSETS_PER_PAGE;skip>0;skip--)
+            p=page(p.next());
+        long address=p.buf.getLong(PAGE_HEADER+(i%OFFSETS_PER_PAGE)*8);
+        byte[] len=new byte[4];
+        long[] at={address};
+        readBytes(at,len);
+        byte[] body=new byte[ByteBuffer.wrap(len).getInt()];
+        readBytes(at,body);
+        return RecordEntry.fromBytes(body,0,body.length);
+    }
+
+    public synchronized List<String> keys()
+    {
+        return new ArrayList<>(catalog.keySet());
+    }
+
+    //The slot is cleared rather than reused, so it is skipped when the catalog is loaded
+    public synchronized void remove(String key) throws IOException
+    {
+        Meta m=catalog.remove(key);
+        if(m!=null)
+        {
+            release(m);
+            Page p=page(m.slotPage);
+            Arrays.fill(p.buf.array(),m.slotOffset,m.slotOffset+SLOT,(byte)0);
+            markDirty(p);
+            commit();
+        }
+        if(legacy!=null)
+            legacy.remove(key);
+    }
+
+    //Buffer pool hits and misses since the store was opened
+    synchronized long[] poolStats()
+    {
+        return new long[]{hits,misses};
+    }
+
+    synchronized void close() throws IOException
+    {
+        checkpoint();
+        data.close();
+        wal.close();
+    }
+
+    private boolean importLegacy(String key) throws IOException
+    {
+        if(legacy==null||!legacy.exists(key))
+            return false;
+        int n=legacy.count(key);
+        create(key,legacy.read(key,0));
+        Meta m=catalog.get(key);
+        for(int i=1;i<n;i++)
+            appendEntry(m,legacy.read(key,i));
+        commit();
+        return true;
+    }
+
+    private void appendEntry(Meta m,RecordEntry e) throws IOException
+    {
+        byte[] body=e.toBytes();
+        Page tail=page(m.dataTail);
+        if(tail.used()+PAGE_HEADER==PAGE)
+            tail=link(tail,m,true);
+        long address=(long)tail.no*PAGE+PAGE_HEADER+tail.used();
+        ByteBuffer frame=ByteBuffer.allocate(4+body.length).putInt(body.length).put(body);
+        byte[] bytes=frame.array();
+        int written=0;
+        while(written<bytes.length)
+        {
+            int room=PAGE-PAGE_HEADER-tail.used();
+            if(room==0)
+            {
+                tail=link(tail,m,true);
+                continue;
+            }
+            int n=Math.min(room,bytes.length-written);
+            System.arraycopy(bytes,written,tail.buf.array(),PAGE_HEADER+tail.used(),n);
+            tail.buf.putInt(4,tail.used()+n);
+            markDirty(tail);
+            written+=n;
+        }
+        Page off=page(m.offTail);
+        if(off.used()==OFFSETS_PER_PAGE*8)
+            off=link(off,m,false);
+        off.buf.putLong(PAGE_HEADER+off.used(),address);
+        off.buf.putInt(4,off.used()+8);
+        markDirty(off);
+        m.count++;
+        writeSlot(m);
+    }
+
+    //Chains a fresh page after tail and makes it the data or offset tail of the record
+    private Page link(Page tail,Meta m,boolean dataChain) throws IOException
+    {
+        Page p=allocate();
+        tail.buf.putInt(0,p.no);
+        markDirty(tail);
+        if(dataChain)
+            m.dataTail=p.no;
+        else
+            m.offTail=p.no;
+        return p;
+    }
+
+    //Reading out.length bytes from address at[0], following the page chain; at[0] is advanced
+    private void readBytes(long[] at,byte[] out) throws IOException
+    {
+        int done=0;
+        while(done<out.length)
+        {
+            Page p=page((int)(at[0]/PAGE));
+            int pos=(int)(at[0]%PAGE);
+            int end=PAGE_HEADER+p.used();
+            int n=Math.min(end-pos,out.length-done);
+            System.arraycopy(p.buf.array(),pos,out,done,n);
+            done+=n;
+            at[0]+=n;
+            if(pos+n==end)
+                at[0]=(long)p.next()*PAGE+PAGE_HEADER;
+        }
+    }
+
+    private Meta newSlot(byte[] key) throws IOException
+    {
+        Page h=page(0);
+        Page cat=h.buf.getInt(12)==0?null:page(h.buf.getInt(16));
+        if(cat==null||cat.used()==SLOTS_PER_PAGE)
+        {
+            Page fresh=allocate();
+            if(cat==null)
+                h.buf.putInt(12,fresh.no);
+            else
+            {
+                cat.buf.putInt(0,fresh.no);
+                markDirty(cat);
+            }
+            h.buf.putInt(16,fresh.no);
+            markDirty(h);
+            cat=fresh;
+        }
+        Meta m=new Meta();
+        m.slotPage=cat.no;
+        m.slotOffset=PAGE_HEADER+cat.used()*SLOT;
+        cat.buf.putShort(m.slotOffset+20,(short)key.length);
+        System.arraycopy(key,0,cat.buf.array(),m.slotOffset+22,key.length);
+        cat.buf.putInt(4,cat.used()+1);
+        markDirty(cat);
+        return m;
+    }
+
+    private void writeSlot(Meta m) throws IOException
+    {
+        Page p=page(m.slotPage);
+        p.buf.putInt(m.slotOffset,m.dataHead).putInt(m.slotOffset+4,m.dataTail)
+            .putInt(m.slotOffset+8,m.offHead).putInt(m.slotOffset+12,m.offTail).putInt(m.slotOffset+16,m.count);
+        markDirty(p);
+    }
+
+    private void loadCatalog() throws IOException
+    {
+        int no=page(0).buf.getInt(12);
+        while(no!=0)
+        {
+            Page p=page(no);
+            for(int s=0;s<p.used();s++)
+            {
+                Meta m=new Meta();
+                m.slotPage=no;
+                m.slotOffset=PAGE_HEADER+s*SLOT;
+                m.dataHead=p.buf.getInt(m.slotOffset);
+                m.dataTail=p.buf.getInt(m.slotOffset+4);
+                m.offHead=p.buf.getInt(m.slotOffset+8);
+                m.offTail=p.buf.getInt(m.slotOffset+12);
+                m.count=p.buf.getInt(m.slotOffset+16);
+                int len=p.buf.getShort(m.slotOffset+20);
+                if(len==0)
+                    continue;
+                catalog.put(new String(p.buf.array(),m.slotOffset+22,len,StandardCharsets.UTF_8),m);
+            }
+            no=p.next();
+        }
+    }
+
+    //Putting the data and offset pages of a record on the free list
+    private void release(Meta m) throws IOException
+    {
+        for(int no:new int[]{m.dataHead,m.offHead})
+            while(no!=0)
+            {
+                Page p=page(no);
+                int next=p.next();
+                Page h=page(0);
+                p.buf.putInt(0,h.buf.getInt(24)).putInt(4,0);
+                h.buf.putInt(24,no);
+                markDirty(p);
+                markDirty(h);
+                no=next;
+            }
+    }
+
+    private Page allocate() throws IOException
+    {
+        Page h=page(0);
+        int free=h.buf.getInt(24);
+        if(free!=0)
+        {
+            Page p=page(free);
+            h.buf.putInt(24,p.next());
+            Arrays.fill(p.buf.array(),(byte)0);
+            markDirty(h);
+            markDirty(p);
+            return p;
+        }
+        int no=h.buf.getInt(8);
+        h.buf.putInt(8,no+1);
+        markDirty(h);
+        Page p=new Page(no,new byte[PAGE]);
+        pool.put(no,p);
+        markDirty(p);
+        return p;
+    }
+
+    private Page page(int no) throws IOException
+    {
+        Page p=dirty.get(no);
+        if(p==null)
+            p=pool.get(no);
+        if(p!=null)
+        {
+            hits++;
+            return p;
+        }
+        misses++;
+        byte[] b=new byte[PAGE];
+        long pos=(long)no*PAGE;
+        if(pos<data.length())
+        {
+            data.seek(pos);
+            data.readFully(b,0,(int)Math.min(PAGE,data.length()-pos));
+        }
+        p=new Page(no,b);
+        pool.put(no,p);
+        return p;
+    }
+
+    private void markDirty(Page p)
+    {
+        dirty.put(p.no,p);
+    }
+
+    //Logging the dirty pages, forcing the log, then writing the pages in place
+    private void commit() throws IOException
+    {
+        if(dirty.isEmpty())
+            return;
+        ByteBuffer txn=ByteBuffer.allocate(8+dirty.size()*(4+PAGE)+8);
+        txn.putInt(TXN).putInt(dirty.size());
+        for(Page p:dirty.values())
+            txn.putInt(p.no).put(p.buf.array());
+        CRC32 crc=new CRC32();
+        crc.update(txn.array(),0,txn.position());
+        txn.putLong(crc.getValue());
+        wal.seek(wal.length());
+        wal.write(txn.array());
+        wal.getChannel().force(false);
+        for(Page p:dirty.values())
+        {
+            data.seek((long)p.no*PAGE);
+            data.write(p.buf.array());
+            pool.put(p.no,p);
+        }
+        dirty.clear();
+        if(wal.length()>CHECKPOINT_BYTES)
+            checkpoint();
+    }
+
+    private void checkpoint() throws IOException
+    {
+        data.getChannel().force(true);
+        wal.setLength(0);
+    }
+
+    //Re-applying every complete transaction found in the log
+    private void recover() throws IOException
+    {
+        wal.seek(0);
+        byte[] log=new byte[(int)wal.length()];
+        wal.readFully(log);
+        ByteBuffer in=ByteBuffer.wrap(log);
+        while(in.remaining()>=8&&in.getInt(in.position())==TXN)
+        {
+            int start=in.position();
+            int n=in.getInt(start+4);
+            int end=start+8+n*(4+PAGE);
+            if(n<0||end+8>log.length)
+                break;
+            CRC32 crc=new CRC32();
+            crc.update(log,start,end-start);
+            if(crc.getValue()!=in.getLong(end))
+                break;
+            for(int i=0;i<n;i++)
+            {
+                int at=start+8+i*(4+PAGE);
+                data.seek((long)in.getInt(at)*PAGE);
+                data.write(log,at+4,PAGE);
+            }
+            in.position(end+8);
+        }
+        checkpoint();
+    }
+}
+
+//Pages through the entries of one patient record without reading the rest of it.
+//Entries are appended in time order, so a date range is turned into an index range
+//with two binary searches; paging newest-first simply walks that range backwards.
+//Entries converted from the old text files without a readable date have time 0; such
+//an entry is taken to be as old as the next dated entry (the newest if none follows),
+//so the searches step over it instead of being misled.
+class HistoryPager
+{
+    private final RecordStore store;
+    private final String key;
+    private final boolean newestFirst;
+    //Entry index range [first,last) covered by the pager, admission details excluded
+    final int first;
+    final int last;
+
+    HistoryPager(RecordStore store,String key,long from,long to,boolean newestFirst) throws IOException
+    {
+        this.store=store;
+        this.key=key;
+        this.newestFirst=newestFirst;
+        int n=store.count(key);
+        first=from<=0?1:lowerBound(1,n,from);
+        last=to==Long.MAX_VALUE?n:lowerBound(first,n,to+1);
+    }
+
+    //First index in [lo,hi) whose entry time is at least t
+    private int lowerBound(int lo,int hi,long t) throws IOException
+    {
+        while(lo<hi)
+        {
+            int mid=(lo+hi)>>>1;
+            //An undated entry is compared by the next dated one; a run of them is read through
+            int dated=mid;
+            long time=0;
+            while(dated<hi&&(time=store.read(key,dated).time)==0)
+                dated++;
+            if(dated<hi&&time<t)
+                lo=dated+1;
+            else
+                hi=mid;
+        }
+        return lo;
+    }
+
+    int size()
+    {
+        return Math.max(0,last-first);
+    }
+
+    int pages(int pageSize)
+    {
+        return Math.max(1,(size()+pageSize-1)/pageSize);
+    }
+
+    //Rendering one page into a single buffer, reading only the entries on it
+    String page(int p,int pageSize) throws IOException
+    {
+        StringBuilder out=new StringBuilder(pageSize*256);
+        int from=p*pageSize;
+        int to=Math.min(size(),from+pageSize);
+        for(int i=from;i<to;i++)
+        {
+            int at=newestFirst?last-1-i:first+i;
+            for(String line:store.read(key,at).lines())
+                out.append(line).append('\n');
+        }
+        if(from>=to)
+            out.append("No entries in the selected period\n");
+        return out.toString();
+    }
+}
+
+//Patient lookups as used by the menu; served by PatientIndex locally or by the record server
+interface PatientLookup
+{
+    void add(long id,String name,long contact,String fileName) throws IOException;
+    List<PatientIndex.Entry> byId(long id) throws IOException;
+    List<PatientIndex.Entry> byContact(long contact) throws IOException;
+    List<PatientIndex.Entry> byNamePrefix(String prefix) throws IOException;
+}
+
+//Local server owning the record store and patient index so several front-desk terminals
+//can work on the same patients. Each connection gets a thread, but the store underneath
+//applies one request at a time (PagedRecordStore is synchronized and forces every commit),
+//so store requests from all terminals are serialized there. Reads answered by the record
+//cache, patient lookups and clinical searches do not wait for the store.
+class RecordServer
+{
+    static final int DEFAULT_PORT=5150;
+    static final byte EXISTS=1,CREATE=2,APPEND=3,COUNT=4,READ=5,KEYS=6,INDEX_ADD=7,BY_ID=8,BY_CONTACT=9,BY_NAME=10,CLINICAL_PATIENTS=11,CLINICAL_CASES=12,STAMP=13,APPEND_ALL=14;
+    static final byte OK=0,NOT_FOUND=1,FAILED=2;
+
+    private final RecordStore store;
+    private final PatientLookup index;
+    private final ClinicalSearch clinical;
+    private final ExecutorService sessions=Executors.newCachedThreadPool();
+    private final AtomicInteger active=new AtomicInteger();
+
+    RecordServer(RecordStore store,PatientLookup index,ClinicalSearch clinical)
+    {
+        this.store=store;
+        this.index=index;
+        this.clinical=clinical;
+    }
+
+    //Accepting terminals on the loopback interface until the process is stopped
+    void serve(int port) throws IOException
+    {
+        try(ServerSocket server=new ServerSocket(port,50,InetAddress.getLoopbackAddress()))
+        {
+            System.out.println("E-Health record server listening on port "+port);
+            while(true)
+            {
+                Socket s=server.accept();
+                s.setTcpNoDelay(true);
+                sessions.execute(()->session(s));
+            }
+        }
+    }
+
+    private void session(Socket s)
+    {
+        System.out.println("Terminal connected ("+active.incrementAndGet()+" active)");
+        try(Socket socket=s;
+            DataInputStream in=new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())))
+        {
+            while(true)
+            {
+                byte op;
+                try
+                {
+                    op=in.readByte();
+                }
+                catch(EOFException closed)
+                {
+                    break;
+                }
+                handle(op,in,out);
+                out.flush();
+            }
+        }
+        catch(IOException e)
+        {
+            System.out.println("Terminal connection lost: "+e.getMessage());
+        }
+        System.out.println("Terminal disconnected ("+active.decrementAndGet()+" active)");
+    }
+
+    private void handle(byte op,DataInputStream in,DataOutputStream out) throws IOException
+    {
+        String key=in.readUTF();
+        //The request is read completely before it is applied
+        RecordEntry entry=op==CREATE||op==APPEND?RecordEntry.read(in):null;
+        int i=op==READ?in.readInt():0;
+        long number=op==INDEX_ADD||op==BY_ID||op==BY_CONTACT?in.readLong():0;
+        long contact=op==INDEX_ADD?in.readLong():0;
+        String text=op==INDEX_ADD||op==BY_NAME||op==CLINICAL_PATIENTS?in.readUTF():null;
+        String field=op==CLINICAL_PATIENTS?in.readUTF():null;
+        long from=op==CLINICAL_PATIENTS||op==CLINICAL_CASES?in.readLong():0;
+        long to=op==CLINICAL_PATIENTS||op==CLINICAL_CASES?in.readLong():0;
+        List<String> batchKeys=new ArrayList<>();
+        List<RecordEntry> batchEntries=new ArrayList<>();
+        for(int n=op==APPEND_ALL?in.readInt():0;n>0;n--)
+        {
+            batchKeys.add(in.readUTF());
+            batchEntries.add(RecordEntry.read(in));
+        }
+        try
+        {
+            switch(op)
+            {
+            case EXISTS: out.writeByte(OK); out.writeBoolean(store.exists(key)); break;
+            case CREATE: store.create(key,entry); out.writeByte(OK); break;
+            case APPEND: store.append(key,entry); out.writeByte(OK); break;
+            case APPEND_ALL: store.appendAll(batchKeys,batchEntries); out.writeByte(OK); break;
+            case COUNT: int n=store.count(key); out.writeByte(OK); out.writeInt(n); break;
+            case STAMP: long stamp=store.stamp(key); out.writeByte(OK); out.writeLong(stamp); break;
+            case READ: RecordEntry e=store.read(key,i); out.writeByte(OK); e.write(out); break;
+            case KEYS:
+                List<String> keys=store.keys();
+                out.writeByte(OK);
+                out.writeInt(keys.size());
+                for(String k:keys)
+                    out.writeUTF(k);
+                break;
+            case INDEX_ADD: index.add(number,text,contact,key); out.writeByte(OK); break;
+            case BY_ID: writeEntries(out,index.byId(number)); break;
+            case BY_CONTACT: writeEntries(out,index.byContact(number)); break;
+            case BY_NAME: writeEntries(out,index.byNamePrefix(text)); break;
+            case CLINICAL_PATIENTS:
+                Set<String> found=clinical.patients(field,text,from,to);
+                out.writeByte(OK);
+                out.writeInt(found.size());
+                for(String k:found)
+                    out.writeUTF(k);
+                break;
+            case CLINICAL_CASES:
+                Map<String,Map<String,Integer>> cases=clinical.casesByWard(from,to);
+                out.writeByte(OK);
+                out.writeInt(cases.size());
+                for(Map.Entry<String,Map<String,Integer>> w:cases.entrySet())
+                {
+                    out.writeUTF(w.getKey());
+                    out.writeInt(w.getValue().size());
+                    for(Map.Entry<String,Integer> d:w.getValue().entrySet())
+                    {
+                        out.writeUTF(d.getKey());
+                        out.writeInt(d.getValue());
+                    }
+                }
+                break;
+            default: throw new IOException("Unknown request "+op);
+            }
+        }
+        catch(FileNotFoundException e)
+        {
+            out.writeByte(NOT_FOUND);
+            out.writeUTF(key);
+        }
+        catch(IOException|RuntimeException e)
+        {
+            out.writeByte(FAILED);
+            out.writeUTF(String.valueOf(e.getMessage()));
+        }
+    }
+
+    private static void writeEntries(DataOutputStream out,List<PatientIndex.Entry> entries) throws IOException
+    {
+        out.writeByte(OK);
+        out.writeInt(entries.size());
+        for(PatientIndex.Entry e:entries)
+        {
+            out.writeLong(e.id);
+            out.writeLong(e.contact);
+            out.writeUTF(e.name);
+            out.writeUTF(e.fileName);
+        }
+    }
+}
+
+//Terminal side of the record server: the menu uses it exactly like a local store and index
+class RemoteRecordClient implements RecordStore,PatientLookup,ClinicalSearch
+{
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    RemoteRecordClient(int port) throws IOException
+    {
+        socket=new Socket(InetAddress.getLoopbackAddress(),port);
+        socket.setTcpNoDelay(true);
+        in=new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    private void send(byte op,String key) throws IOException
+    {
+        out.writeByte(op);
+        out.writeUTF(key);
+    }
+
+    //Flushing the request and checking the status of the reply
+    private DataInputStream reply() throws IOException
+    {
+        out.flush();
+        byte status=in.readByte();
+        if(status==RecordServer.NOT_FOUND)
+            throw new FileNotFoundException(in.readUTF());
+        if(status!=RecordServer.OK)
+            throw new IOException("Server error: "+in.readUTF());
+        return in;
+    }
+
+    public synchronized boolean exists(String key) throws IOException
+    {
+        send(RecordServer.EXISTS,key);
+        return reply().readBoolean();
+    }
+
+    public synchronized void create(String key,RecordEntry demographics) throws IOException
+    {
+        send(RecordServer.CREATE,key);
+        demographics.write(out);
+        reply();
+    }
+
+    public synchronized void append(String key,RecordEntry entry) throws IOException
+    {
+        send(RecordServer.APPEND,key);
+        entry.write(out);
+        reply();
+    }
+
+    public synchronized void appendAll(List<String> keys,List<RecordEntry> entries) throws IOException
+    {
+        send(RecordServer.APPEND_ALL,"");
+        out.writeInt(keys.size());
+        for(int i=0;i<keys.size();i++)
+        {
+            out.writeUTF(keys.get(i));
+            entries.get(i).write(out);
+        }
+        reply();
+    }
+
+    public synchronized int count(String key) throws IOException
+    {
+        send(RecordServer.COUNT,key);
+        return reply().readInt();
+    }
+
+    public synchronized long stamp(String key) throws IOException
+    {
+        send(RecordServer.STAMP,key);
+        return reply().readLong();
+    }
+
+    public synchronized RecordEntry read(String key,int i) throws IOException
+    {
+        send(RecordServer.READ,key);
+        out.writeInt(i);
+        return RecordEntry.read(reply());
+    }
+
+    public synchronized List<String> keys() throws IOException
+    {
+        send(RecordServer.KEYS,"");
+        DataInputStream r=reply();
+        int n=r.readInt();
+        List<String> keys=new ArrayList<>(n);
+        for(int i=0;i<n;i++)
+            keys.add(r.readUTF());
+        return keys;
+    }
+
+    public synchronized void add(long id,String name,long contact,String fileName) throws IOException
+    {
+        send(RecordServer.INDEX_ADD,fileName);
+        out.writeLong(id);
+        out.writeLong(contact);
+        out.writeUTF(name);
+        reply();
+    }
+
+    public synchronized List<PatientIndex.Entry> byId(long id) throws IOException
+    {
+        send(RecordServer.BY_ID,"");
+        out.writeLong(id);
+        return readEntries();
+    }
+
+    public synchronized List<PatientIndex.Entry> byContact(long contact) throws IOException
+    {
+        send(RecordServer.BY_CONTACT,"");
+        out.writeLong(contact);
+        return readEntries();
+    }
+
+    public synchronized List<PatientIndex.Entry> byNamePrefix(String prefix) throws IOException
+    {
+        send(RecordServer.BY_NAME,"");
+        out.writeUTF(prefix);
+        return readEntries();
+    }
+
+    public synchronized Set<String> patients(String field,String term,long from,long to) throws IOException
+    {
+        send(RecordServer.CLINICAL_PATIENTS,"");
+        out.writeUTF(term);
+        out.writeUTF(field);
+        out.writeLong(from);
+        out.writeLong(to);
+        DataInputStream r=reply();
+        int n=r.readInt();
+        Set<String> found=new LinkedHashSet<>();
+        for(int i=0;i<n;i++)
+            found.add(r.readUTF());
+        return found;
+    }
+
+    public synchronized Map<String,Map<String,Integer>> casesByWard(long from,long to) throws IOException
+    {
+        send(RecordServer.CLINICAL_CASES,"");
+        out.writeLong(from);
+        out.writeLong(to);
+        DataInputStream r=reply();
+        Map<String,Map<String,Integer>> cases=new TreeMap<>();
+        for(int w=r.readInt();w>0;w--)
+        {
+            Map<String,Integer> counts=new TreeMap<>();
+            cases.put(r.readUTF(),counts);
+            for(int d=r.readInt();d>0;d--)
+                counts.put(r.readUTF(),r.readInt());
+        }
+        return cases;
+    }
+
+    private List<PatientIndex.Entry> readEntries() throws IOException
+    {
+        DataInputStream r=reply();
+        int n=r.readInt();
+        List<PatientIndex.Entry> found=new ArrayList<>(n);
+        for(int i=0;i<n;i++)
+            found.add(new PatientIndex.Entry(r.readLong(),r.readLong(),r.readUTF(),r.readUTF()));
+        return found;
+    }
+
+    void close() throws IOException
+    {
+        socket.close();
+    }
+}
+
+//Charges used by the billing engine, read from "rates.txt" when present. Lines are
+//"ward <type> <rate per day>", "doctor <name> <fee per visit>", "service <charge>";
+//anything not listed falls back to the default ward rate, doctor fee and service charge.
+class RateTable
+{
+    private final Map<String,Double> wards=new HashMap<>();
+    private final Map<String,Double> doctors=new HashMap<>();
+    double defaultWard=1000;
+    double defaultDoctor=500;
+    double service=200;
+
+    static RateTable load(File f) throws IOException
+    {
+        RateTable t=new RateTable();
+        t.wards.put("general",1000.0);
+        t.wards.put("semi-private",2500.0);
+        t.wards.put("private",4000.0);
+        t.wards.put("icu",8000.0);
+        if(!f.exists())
+            return t;
+        List<String> lines=Files.readAllLines(f.toPath());
+        for(int n=0;n<lines.size();n++)
+        {
+            String[] p=lines.get(n).trim().split("\\s+");
+            if(p.length<2||p[0].startsWith("#"))
+                continue;
+            double v;
+            try
+            {
+                v=Double.parseDouble(p[p.length-1]);
+            }
+            catch(NumberFormatException e)
+            {
+                throw new IOException(f.getName()+" line "+(n+1)+": '"+p[p.length-1]+"' is not a rate");
+            }
+            String name=String.join(" ",Arrays.copyOfRange(p,1,p.length-1)).toLowerCase();
+            if(p[0].equals("ward"))
+                t.wards.put(name,v);
+            else if(p[0].equals("doctor"))
+                t.doctors.put(name,v);
+            else if(p[0].equals("service"))
+                t.service=v;
+        }
+        return t;
+    }
+
+    double ward(String type)
+    {
+        return wards.getOrDefault(type.trim().toLowerCase(),defaultWard);
+    }
+
+    double doctor(String name)
+    {
+        return doctors.getOrDefault(name.trim().toLowerCase(),defaultDoctor);
+    }
+}
+
+//Month-end billing over every patient record. Worker threads each take a share of the
+//records and price the entries added since the patient's last bill; priced invoices go
+//through a queue to one writer thread that streams them to the ledger file, so the
+//ledger is written sequentially no matter how many workers run.
+class BillingRun
+{
+    //One priced invoice; days is 0 for patients who were not admitted
+    static class Invoice
+    {
+        final String key;
+        final String ward;
+        final int days;
+        final double wardCharges;
+        final double doctorFees;
+        final double service;
+        Invoice(String key,String ward,int days,double wardCharges,double doctorFees,double service)
+        {
+            this.key=key;
+            this.ward=ward;
+            this.days=days;
+            this.wardCharges=wardCharges;
+            this.doctorFees=doctorFees;
+            this.service=service;
+        }
+        double total()
+        {
+            return wardCharges+doctorFees+service;
+        }
+    }
+
+    private static final Invoice END=new Invoice("",null,0,0,0,0);
+    //Bills posted per store transaction; each patient's bill dirties about two pages
+    private static final int POST_BATCH=256;
+    private static final long DAY=24L*60*60*1000;
+
+    private final RecordStore store;
+    private final RateTable rates;
+    private final int workers;
+    final AtomicLong scanned=new AtomicLong();
+    final AtomicLong billed=new AtomicLong();
+    final AtomicLong failed=new AtomicLong();
+    final DoubleAdder amount=new DoubleAdder();
+
+    BillingRun(RecordStore store,RateTable rates,int workers)
+    {
+        this.store=store;
+        this.rates=rates;
+        this.workers=workers;
+    }
+
+    //Pricing the entries after the last bill, up to runTime; null when nothing is due
+    Invoice price(String key,long runTime) throws IOException
+    {
+        int n=store.count(key);
+        List<RecordEntry> open=new ArrayList<>();
+        for(int i=n-1;i>0;i--)
+        {
+            RecordEntry e=store.read(key,i);
+            if(e.type==RecordEntry.BILL)
+                break;
+            open.add(e);
+        }
+        if(open.isEmpty())
+            return null;
+        String ward="";
+        long admitted=0;
+        double doctorFees=0;
+        for(int i=open.size()-1;i>=0;i--)
+        {
+            RecordEntry v=open.get(i);
+            doctorFees+=rates.doctor(v.value(RecordEntry.VISIT_LABELS[1]));
+            String w=v.value(RecordEntry.VISIT_LABELS[6]);
+            if(!w.isEmpty())
+            {
+                ward=w;
+                if(admitted==0)
+                    admitted=v.time;
+            }
+        }
+        int days=admitted==0?0:(int)Math.max(1,(runTime-admitted+DAY-1)/DAY);
+        return new Invoice(key,ward,days,days*(ward.isEmpty()?0:rates.ward(ward)),doctorFees,rates.service);
+    }
+
+    //Running the batch; with post set, each invoice is also added to the patient record as its bill.
+    //Bills are posted by the ledger writer once their ledger lines are flushed, so a patient is
+    //never marked billed without a ledger line; if the ledger cannot be written the run stops
+    void run(File ledger,boolean post) throws IOException,InterruptedException
+    {
+        List<String> keys=store.keys();
+        long runTime=System.currentTimeMillis();
+        String date=DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss").format(LocalDateTime.now());
+        BlockingQueue<Invoice> queue=new ArrayBlockingQueue<>(4096);
+        AtomicInteger next=new AtomicInteger();
+        AtomicReference<IOException> writeError=new AtomicReference<>();
+        Thread writer=new Thread(()->{
+            try(BufferedWriter out=new BufferedWriter(new FileWriter(ledger,true),1<<16))
+            {
+                out.write("# Billing run "+date+"\n");
+                List<Invoice> batch=new ArrayList<>(1024);
+                for(boolean end=false;!end;)
+                {
+                    batch.add(queue.take());
+                    queue.drainTo(batch,1023);
+                    for(Invoice inv:batch)
+                        if(inv==END)
+                            end=true;
+                        else
+                            out.write(String.format("%s,%s,%d,%.2f,%.2f,%.2f,%.2f%n",inv.key,inv.ward,inv.days,inv.wardCharges,inv.doctorFees,inv.service,inv.total()));
+                    out.flush();
+                    batch.remove(END);
+                    for(int i=0;i<batch.size();i+=POST_BATCH)
+                        postBills(batch.subList(i,Math.min(batch.size(),i+POST_BATCH)),date,post);
+                    batch.clear();
+                }
+            }
+            catch(IOException e)
+            {
+                writeError.set(e);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        },"billing-ledger");
+        writer.start();
+        ExecutorService pool=Executors.newFixedThreadPool(workers);
+        List<Future<?>> done=new ArrayList<>();
+        for(int w=0;w<workers;w++)
+            done.add(pool.submit(()->{
+                for(int k;writeError.get()==null&&(k=next.getAndIncrement())<keys.size();)
+                {
+                    String key=keys.get(k);
+                    try
+                    {
+                        Invoice inv=price(key,runTime);
+                        scanned.incrementAndGet();
+                        if(inv!=null)
+                            enqueue(queue,inv,writeError);
+                    }
+                    catch(IOException|RuntimeException e)
+                    {
+                        failed.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        pool.shutdown();
+        for(Future<?> f:done)
+        {
+            try
+            {
+                f.get();
+            }
+            catch(ExecutionException e)
+            {
+                failed.incrementAndGet();
+            }
+        }
+        enqueue(queue,END,writeError);
+        writer.join();
+        if(writeError.get()!=null)
+            throw writeError.get();
+    }
+
+    //Waiting for room in the queue only while the ledger writer is still alive
+    private static void enqueue(BlockingQueue<Invoice> queue,Invoice inv,AtomicReference<IOException> writeError) throws InterruptedException
+    {
+        while(writeError.get()==null)
+            if(queue.offer(inv,100,TimeUnit.MILLISECONDS))
+                return;
+    }
+
+    //The bills of a batch are appended as one store transaction, so the run forces the
+    //log once per batch instead of once per patient. If the batch is refused because a
+    //record is gone (removed since it was priced, say) its bills are posted one by one
+    private void postBills(List<Invoice> batch,String date,boolean post)
+    {
+        if(post&&!batch.isEmpty())
+        {
+            List<String> keys=new ArrayList<>(batch.size());
+            List<RecordEntry> bills=new ArrayList<>(batch.size());
+            for(Invoice inv:batch)
+            {
+                keys.add(inv.key);
+                bills.add(bill(inv,date));
+            }
+            try
+            {
+                store.appendAll(keys,bills);
+            }
+            catch(FileNotFoundException e)
+            {
+                for(Invoice inv:batch)
+                    postBill(inv,date);
+                return;
+            }
+            catch(IOException|RuntimeException e)
+            {
+                failed.addAndGet(batch.size());
+                return;
+            }
+        }
+        for(Invoice inv:batch)
+        {
+            billed.incrementAndGet();
+            amount.add(inv.total());
+        }
+    }
+
+    private void postBill(Invoice inv,String date)
+    {
+        try
+        {
+            store.append(inv.key,bill(inv,date));
+            billed.incrementAndGet();
+            amount.add(inv.total());
+        }
+        catch(IOException|RuntimeException e)
+        {
+            failed.incrementAndGet();
+        }
+    }
+
+    private static RecordEntry bill(Invoice inv,String date)
+    {
+        return RecordEntry.bill(date,inv.days,inv.days==0?0:inv.wardCharges/inv.days,inv.doctorFees,inv.service);
+    }
+}
+
+//Queries over the diagnosis entries of all patients
+interface ClinicalSearch
+{
+    //Fields that can be searched
+    String DOCTOR="doctor",SYMPTOM="symptom",DIAGNOSIS="diagnosis",MEDICINE="medicine";
+    //Patients with a visit in [from,to] whose field mentions the term
+    Set<String> patients(String field,String term,long from,long to) throws IOException;
+    //Visits in [from,to] counted per ward and diagnosis
+    Map<String,Map<String,Integer>> casesByWard(long from,long to) throws IOException;
+}
+
+//Inverted index over doctor, symptoms, diagnosis and medicines of every visit. Each
+//comma separated phrase and each word of it is a term; a term's postings (visit time,
+//patient, ward) are kept in time order in primitive arrays, so a date window is two
+//binary searches away. Visits are also appended to "clinical.log", which is replayed
+//on open, so the index never has to rescan the patient records.
+class ClinicalIndex implements ClinicalSearch
+{
+    private static final String[] FIELDS={DOCTOR,SYMPTOM,DIAGNOSIS,MEDICINE};
+    private static final int[] VISIT_FIELD={1,2,3,4};
+    private static final int WARD=6;
+    private static final String WORD="~";
+
+    private static class Postings
+    {
+        long[] times=new long[4];
+        int[] patients=new int[4];
+        int[] wards=new int[4];
+        int size;
+
+        void add(long t,int patient,int ward)
+        {
+            if(size==times.length)
+            {
+                times=Arrays.copyOf(times,size*2);
+                patients=Arrays.copyOf(patients,size*2);
+                wards=Arrays.copyOf(wards,size*2);
+            }
+            //Visits nearly always arrive in time order; late ones are shifted into place
+            int at=size;
+            while(at>0&&times[at-1]>t)
+                at--;
+            System.arraycopy(times,at,times,at+1,size-at);
+            System.arraycopy(patients,at,patients,at+1,size-at);
+            System.arraycopy(wards,at,wards,at+1,size-at);
+            times[at]=t;
+            patients[at]=patient;
+            wards[at]=ward;
+            size++;
+        }
+
+        int lowerBound(long t)
+        {
+            int lo=0,hi=size;
+            while(lo<hi)
+            {
+                int mid=(lo+hi)>>>1;
+                if(times[mid]<t)
+                    lo=mid+1;
+                else
+                    hi=mid;
+            }
+            return lo;
+        }
+    }
+
+    private final Map<String,Postings> terms=new HashMap<>();
+    private final List<String> keys=new ArrayList<>();
+    private final Map<String,Integer> keyIds=new HashMap<>();
+    private final List<String> wardNames=new ArrayList<>();
+    private final Map<String,Integer> wardIds=new HashMap<>();
+    private final FileChannel file;
+    private final DataOutputStream log;
+    private long visits;
+
+    //The log is locked while the index is open, like records.db, so only one program appends
+    //to it. It is read and written through the one locked channel: closing any other handle
+    //on the file would release the lock
+    ClinicalIndex(File logFile) throws IOException
+    {
+        file=new RandomAccessFile(logFile,"rw").getChannel();
+        try
+        {
+            PagedRecordStore.lock(file,logFile);
+            replay(new DataInputStream(new BufferedInputStream(Channels.newInputStream(file),1<<16)));
+            file.position(file.size());
+        }
+        catch(IOException e)
+        {
+            file.close();
+            throw e;
+        }
+        log=new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file)));
+    }
+
+    //in is not closed, as that would close the channel
+    private void replay(DataInputStream in) throws IOException
+    {
+        while(true)
+        {
+            String key;
+            RecordEntry e;
+            try
+            {
+                key=in.readUTF();
+                e=RecordEntry.read(in);
+            }
+            catch(EOFException end)
+            {
+                //A torn last record is dropped
+                break;
+            }
+            index(key,e);
+        }
+    }
+
+    //Indexing one appended visit; other entry types are ignored
+    synchronized void add(String key,RecordEntry e) throws IOException
+    {
+        if(e.type!=RecordEntry.VISIT)
+            return;
+        log.writeUTF(key);
+        e.write(log);
+        log.flush();
+        index(key,e);
+    }
+
+    //Indexing the visits of every record in the store, for data written before the index existed;
+    //the log and the index are emptied first
+    synchronized int rebuild(RecordStore store) throws IOException
+    {
+        log.flush();
+        file.truncate(0);
+        terms.clear();
+        keys.clear();
+        keyIds.clear();
+        wardNames.clear();
+        wardIds.clear();
+        visits=0;
+        int n=0;
+        for(String key:store.keys())
+        {
+            int count=store.count(key);
+            for(int i=1;i<count;i++)
+            {
+                RecordEntry e=store.read(key,i);
+                if(e.type==RecordEntry.VISIT)
+                {
+                    add(key,e);
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    synchronized long visits()
+    {
+        return visits;
+    }
+
+    private void index(String key,RecordEntry e)
+    {
+        int patient=intern(key,keys,keyIds);
+        int ward=intern(normalize(e.value(RecordEntry.VISIT_LABELS[WARD])),wardNames,wardIds);
+        for(int f=0;f<FIELDS.length;f++)
+        {
+            Set<String> seen=new HashSet<>();
+            for(String phrase:e.values[VISIT_FIELD[f]].split("[,;/+]"))
+            {
+                String p=normalize(phrase);
+                if(p.isEmpty())
+                    continue;
+                if(seen.add(FIELDS[f]+":"+p))
+                    posting(FIELDS[f]+":"+p).add(e.time,patient,ward);
+                for(String w:p.split(" "))
+                    if(w.length()>2&&seen.add(FIELDS[f]+WORD+w))
+                        posting(FIELDS[f]+WORD+w).add(e.time,patient,ward);
+            }
+        }
+        visits++;
+    }
+
+    private Postings posting(String term)
+    {
+        return terms.computeIfAbsent(term,t->new Postings());
+    }
+
+    public synchronized Set<String> patients(String field,String term,long from,long to)
+    {
+        String t=normalize(term);
+        Set<String> out=new LinkedHashSet<>();
+        collect(terms.get(field+":"+t),from,to,out);
+        if(t.indexOf(' ')<0)
+            collect(terms.get(field+WORD+t),from,to,out);
+        return out;
+    }
+
+    private void collect(Postings p,long from,long to,Set<String> out)
+    {
+        if(p==null)
+            return;
+        for(int i=p.lowerBound(from);i<p.size&&p.times[i]<=to;i++)
+            out.add(keys.get(p.patients[i]));
+    }
+
+    public synchronized Map<String,Map<String,Integer>> casesByWard(long from,long to)
+    {
+        Map<String,Map<String,Integer>> out=new TreeMap<>();
+        String prefix=DIAGNOSIS+":";
+        for(Map.Entry<String,Postings> t:terms.entrySet())
+        {
+            if(!t.getKey().startsWith(prefix))
+                continue;
+            String diagnosis=t.getKey().substring(prefix.length());
+            Postings p=t.getValue();
+            for(int i=p.lowerBound(from);i<p.size&&p.times[i]<=to;i++)
+            {
+                String ward=wardNames.get(p.wards[i]);
+                out.computeIfAbsent(ward.isEmpty()?"(not admitted)":ward,w->new TreeMap<>()).merge(diagnosis,1,Integer::sum);
+            }
+        }
+        return out;
+    }
+
+    synchronized void close() throws IOException
+    {
+        log.close();
+    }
+
+    private static int intern(String s,List<String> names,Map<String,Integer> ids)
+    {
+        Integer id=ids.get(s);
+        if(id==null)
+        {
+            id=names.size();
+            names.add(s);
+            ids.put(s,id);
+        }
+        return id;
+    }
+
+    static String normalize(String s)
+    {
+        return s.trim().toLowerCase().replaceAll("\\s+"," ");
+    }
+}
+
+//Record store wrapper feeding every appended visit to the clinical index
+class ClinicalIndexingStore implements RecordStore
+{
+    private final RecordStore store;
+    private final ClinicalIndex clinical;
+
+    ClinicalIndexingStore(RecordStore store,ClinicalIndex clinical)
+    {
+        this.store=store;
+        this.clinical=clinical;
+    }
+
+    public boolean exists(String key) throws IOException { return store.exists(key); }
+    public void create(String key,RecordEntry demographics) throws IOException { store.create(key,demographics); }
+    public void createAll(List<String> keys,List<RecordEntry> demographics) throws IOException { store.createAll(keys,demographics); }
+    public int count(String key) throws IOException { return store.count(key); }
+    public long stamp(String key) throws IOException { return store.stamp(key); }
+    public RecordEntry read(String key,int i) throws IOException { return store.read(key,i); }
+    public List<String> keys() throws IOException { return store.keys(); }
+    public void remove(String key) throws IOException { store.remove(key); }
+
+    public void append(String key,RecordEntry entry) throws IOException
+    {
+        store.append(key,entry);
+        clinical.add(key,entry);
+    }
+
+    public void appendAll(List<String> keys,List<RecordEntry> entries) throws IOException
+    {
+        store.appendAll(keys,entries);
+        for(int i=0;i<keys.size();i++)
+            clinical.add(keys.get(i),entries.get(i));
+    }
+}
+
+//Streaming import of patient registrations from a CSV dump. Columns are
+//file name, name, address, contact number, age, sex, blood group, earlier disease,
+//patient ID and optionally the admission date (dd/MM/yyyy HH:mm:ss). The file is read
+//in chunks that worker threads parse and validate in parallel; valid rows are written
+//to the store a chunk at a time and rejected rows go to "<csv>.rejected.csv" with the
+//line number and reason.
+class BulkImporter
+{
+    static final int CHUNK=1000;
+    private static final Set<String> BLOOD_GROUPS=new HashSet<>(Arrays.asList("A+","A-","B+","B-","AB+","AB-","O+","O-"));
+
+    private static class Row
+    {
+        final String key;
+        final RecordEntry demographics;
+        final long lineNo;
+        final String line;
+        Row(String key,RecordEntry demographics,long lineNo,String line)
+        {
+            this.key=key;
+            this.demographics=demographics;
+            this.lineNo=lineNo;
+            this.line=line;
+        }
+    }
+
+    private static class Chunk
+    {
+        final List<Row> rows=new ArrayList<>();
+        final List<String> rejects=new ArrayList<>();
+    }
+
+    private final RecordStore store;
+    private final PatientLookup index;
+    private final int workers;
+    //File names imported so far, so a name repeated in the dump is not imported twice
+    private final Set<String> seen=new HashSet<>();
+    long imported;
+    long rejected;
+
+    BulkImporter(RecordStore store,PatientLookup index,int workers)
+    {
+        this.store=store;
+        this.index=index;
+        this.workers=workers;
+    }
+
+    void run(File csv) throws IOException,InterruptedException
+    {
+        File report=new File(csv.getPath()+".rejected.csv");
+        ExecutorService pool=Executors.newFixedThreadPool(workers);
+        //Chunks are written in file order; at most 2 per worker are in flight
+        ArrayDeque<Future<Chunk>> inFlight=new ArrayDeque<>();
+        String now=DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss").format(LocalDateTime.now());
+        long start=System.nanoTime();
+        long lastReport=start;
+        try(BufferedReader in=new BufferedReader(new FileReader(csv),1<<16);
+            BufferedWriter rej=new BufferedWriter(new FileWriter(report)))
+        {
+            rej.write("line,reason,row\n");
+            long lineNo=0;
+            boolean eof=false;
+            while(!eof||!inFlight.isEmpty())
+            {
+                while(!eof&&inFlight.size()<2*workers)
+                {
+                    List<String> lines=new ArrayList<>(CHUNK);
+                    long first=lineNo+1;
+                    String line;
+                    while(lines.size()<CHUNK&&(line=in.readLine())!=null)
+                    {
+                        lineNo++;
+                        if(lineNo==1&&line.toLowerCase().startsWith("file"))
+                        {
+                            first++;
+                            continue;
+                        }
+                        lines.add(line);
+                    }
+                    eof=lines.size()<CHUNK;
+                    long chunkStart=first;
+                    if(!lines.isEmpty())
+                        inFlight.add(pool.submit(()->parse(lines,chunkStart,now)));
+                }
+                if(inFlight.isEmpty())
+                    break;
+                Chunk c;
+                try
+                {
+                    c=inFlight.poll().get();
+                }
+                catch(ExecutionException e)
+                {
+                    throw new IOException("Import worker failed",e.getCause());
+                }
+                write(c);
+                for(String r:c.rejects)
+                    rej.write(r);
+                rejected+=c.rejects.size();
+                long t=System.nanoTime();
+                if(t-lastReport>1_000_000_000L)
+                {
+                    lastReport=t;
+                    System.out.printf("\r%d rows imported, %d rejected, %.0f rows/s   ",imported,rejected,(imported+rejected)/((t-start)/1e9));
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        double secs=(System.nanoTime()-start)/1e9;
+        System.out.printf("\r%d rows imported, %d rejected (see %s), %.1f s, %.0f rows/s%n",imported,rejected,report.getName(),secs,(imported+rejected)/Math.max(secs,1e-9));
+    }
+
+    //Rows whose file name is already taken, by a patient or earlier in the dump, are
+    //rejected: importing them would replace that patient's record and history
+    private void write(Chunk c) throws IOException
+    {
+        List<Row> rows=new ArrayList<>(c.rows.size());
+        List<String> keys=new ArrayList<>(c.rows.size());
+        List<RecordEntry> entries=new ArrayList<>(c.rows.size());
+        for(Row r:c.rows)
+        {
+            if(!seen.add(r.key))
+                c.rejects.add(reject(r.lineNo,"file name repeated in the import",r.line));
+            else if(store.exists(r.key))
+                c.rejects.add(reject(r.lineNo,"file name already in use",r.line));
+            else
+            {
+                rows.add(r);
+                keys.add(r.key);
+                entries.add(r.demographics);
+            }
+        }
+        store.createAll(keys,entries);
+        if(index!=null)
+            for(Row r:rows)
+            {
+                String[] v=r.demographics.values;
+                index.add(Long.parseLong(v[8]),v[1],Long.parseLong(v[3]),r.key);
+            }
+        imported+=rows.size();
+    }
+
+    private static String reject(long lineNo,String reason,String line)
+    {
+        return lineNo+","+reason+",\""+line.replace("\"","\"\"")+"\"\n";
+    }
+
+    private static Chunk parse(List<String> lines,long firstLine,String now)
+    {
+        Chunk c=new Chunk();
+        for(int i=0;i<lines.size();i++)
+        {
+            String line=lines.get(i);
+            String reason;
+            try
+            {
+                List<String> f=split(line);
+                reason=validate(f);
+                if(reason==null)
+                {
+                    String dadm=f.size()>9&&!f.get(9).isEmpty()?f.get(9):now;
+                    c.rows.add(new Row(f.get(0),RecordEntry.demographics(dadm,f.get(1),f.get(2),Long.parseLong(f.get(3)),
+                        Integer.parseInt(f.get(4)),f.get(5),f.get(6).toUpperCase(),f.get(7),Long.parseLong(f.get(8))),firstLine+i,line));
+                    continue;
+                }
+            }
+            catch(RuntimeException e)
+            {
+                reason="unreadable row";
+            }
+            c.rejects.add(reject(firstLine+i,reason,line));
+        }
+        return c;
+    }
+
+    //Returns why the row is rejected, or null when it is valid
+    static String validate(List<String> f)
+    {
+        if(f.size()<9)
+            return "expected at least 9 columns, found "+f.size();
+        String key=f.get(0);
+        if(!key.matches("[A-Za-z0-9_.-]+")||key.getBytes(StandardCharsets.UTF_8).length>PagedRecordStore.MAX_KEY)
+            return "invalid file name";
+        if(f.get(1).isEmpty())
+            return "missing name";
+        if(!f.get(3).matches("\\d{7,15}"))
+            return "invalid contact number";
+        if(!f.get(4).matches("\\d{1,3}")||Integer.parseInt(f.get(4))>130)
+            return "invalid age";
+        if(!BLOOD_GROUPS.contains(f.get(6).toUpperCase()))
+            return "invalid blood group";
+        if(!f.get(8).matches("\\d{1,18}"))
+            return "invalid patient ID";
+        if(f.size()>9&&!f.get(9).isEmpty()&&RecordEntry.parseTime(f.get(9))==0)
+            return "invalid admission date";
+        return null;
+    }
+
+    //Splitting one CSV line; fields may be quoted and quotes doubled inside them
+    static List<String> split(String line)
+    {
+        List<String> out=new ArrayList<>(10);
+        StringBuilder cur=new StringBuilder();
+        boolean quoted=false;
+        for(int i=0;i<line.length();i++)
+        {
+            char ch=line.charAt(i);
+            if(quoted)
+            {
+                if(ch=='"'&&i+1<line.length()&&line.charAt(i+1)=='"')
+                {
+                    cur.append('"');
+                    i++;
+                }
+                else if(ch=='"')
+                    quoted=false;
+                else
+                    cur.append(ch);
+            }
+            else if(ch=='"')
+                quoted=true;
+            else if(ch==',')
+            {
+                out.add(cur.toString().trim());
+                cur.setLength(0);
+            }
+            else
+                cur.append(ch);
+        }
+        out.add(cur.toString().trim());
+        return out;
+    }
+}
+
+//Console used by the menu: one buffered reader for all input and one buffered writer
+//for all output. Output is only flushed when the program waits for input, so a whole
+//screen reaches the terminal in one write. Tokens are read like Scanner.next(), but
+//a bad number consumes the token instead of leaving it to be read again.
+class ConsoleIO
+{
+    private final BufferedReader in;
+    private final PrintWriter out;
+    private String line="";
+    private int pos=0;
+
+    ConsoleIO(InputStream in,OutputStream out)
+    {
+        this.in=new BufferedReader(new InputStreamReader(in),1<<16);
+        this.out=new PrintWriter(new BufferedWriter(new OutputStreamWriter(out),1<<16),false);
+    }
+
+    void print(Object o) { out.print(o); }
+    void println(Object o) { out.println(o); }
+    void println() { out.println(); }
+    void printf(String format,Object... args) { out.printf(format,args); }
+
+    void flush()
+    {
+        out.flush();
+    }
+
+    //Reading the next line into the cursor; NoSuchElementException at end of input
+    private void fill()
+    {
+        out.flush();
+        try
+        {
+            line=in.readLine();
+        }
+        catch(IOException e)
+        {
+            line=null;
+        }
+        pos=0;
+        if(line==null)
+        {
+            line="";
+            throw new NoSuchElementException("End of input");
+        }
+    }
+
+    String next()
+    {
+        while(true)
+        {
+            while(pos<line.length()&&Character.isWhitespace(line.charAt(pos)))
+                pos++;
+            if(pos<line.length())
+                break;
+            fill();
+        }
+        int start=pos;
+        while(pos<line.length()&&!Character.isWhitespace(line.charAt(pos)))
+            pos++;
+        return line.substring(start,pos);
+    }
+
+    //Rest of the current line, like Scanner.nextLine()
+    String nextLine()
+    {
+        if(pos>line.length())
+            fill();
+        String rest=line.substring(Math.min(pos,line.length()));
+        pos=line.length()+1;
+        return rest;
+    }
+
+    //Free text answer: what is left on the current line, or else the next line
+    String readString()
+    {
+        String rest=pos<line.length()?line.substring(pos).trim():"";
+        if(!rest.isEmpty())
+        {
+            pos=line.length()+1;
+            return rest;
+        }
+        fill();
+        pos=line.length()+1;
+        return line;
+    }
+
+    int nextInt()
+    {
+        String t=next();
+        try
+        {
+            return Integer.parseInt(t);
+        }
+        catch(NumberFormatException e)
+        {
+            throw new InputMismatchException(t);
+        }
+    }
+
+    long nextLong()
+    {
+        String t=next();
+        try
+        {
+            return Long.parseLong(t);
+        }
+        catch(NumberFormatException e)
+        {
+            throw new InputMismatchException(t);
+        }
+    }
+
+    double nextDouble()
+    {
+        String t=next();
+        try
+        {
+            return Double.parseDouble(t);
+        }
+        catch(NumberFormatException e)
+        {
+            throw new InputMismatchException(t);
+        }
+    }
+
+    //Waiting for Enter; whatever was left on the current line is dropped
+    void pause()
+    {
+        fill();
+        pos=line.length()+1;
+    }
+}
+
+//In-process API over the record store and patient index, with the same effect as the
+//menu options but no console: used by scripts, tests and the load driver.
+class HospitalApi
+{
+    private static final DateTimeFormatter DATE=DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
+    private final RecordStore store;
+    private final PatientLookup index;
+
+    HospitalApi(RecordStore store,PatientLookup index)
+    {
+        this.store=store;
+        this.index=index;
+    }
+
+    static boolean authenticate(String password)
+    {
+        return "deccan".equals(password);
+    }
+
+    static String now()
+    {
+        return DATE.format(LocalDateTime.now());
+    }
+
+    void createPatient(String fileName,String name,String address,long contact,int age,String sex,String bg,String disease,long id) throws IOException
+    {
+        store.create(fileName,RecordEntry.demographics(now(),name,address,contact,age,sex,bg,disease,id));
+        if(index!=null)
+            index.add(id,name,contact,fileName);
+    }
+
+    //ward is only recorded when admission is "Yes" or "Y"
+    void appendDiagnosis(String fileName,String doctor,String symptoms,String diagnosis,String medicines,String admission,String ward) throws IOException
+    {
+        boolean admitted=admission.equals("Yes")||admission.equals("Y");
+        store.append(fileName,RecordEntry.visit(now(),doctor,symptoms,diagnosis,medicines,admission,admitted?ward:""));
+    }
+
+    //One page of the patient's history, admission details excluded
+    List<RecordEntry> readHistory(String fileName,long from,long to,boolean newestFirst,int page,int pageSize) throws IOException
+    {
+        HistoryPager pager=new HistoryPager(store,fileName,from,to,newestFirst);
+        List<RecordEntry> out=new ArrayList<>(pageSize);
+        for(int i=page*pageSize;i<Math.min(pager.size(),(page+1)*pageSize);i++)
+            out.add(store.read(fileName,newestFirst?pager.last-1-i:pager.first+i));
+        return out;
+    }
+
+    //Adds the bill to the record and returns its total
+    double computeBill(String fileName,int days,double wardCharge,double doctorFee,double service) throws IOException
+    {
+        RecordEntry bill=RecordEntry.bill(now(),days,wardCharge,doctorFee,service);
+        store.append(fileName,bill);
+        return Double.parseDouble(bill.value(RecordEntry.BILL_LABELS[5]));
+    }
+}
+
+//Multithreaded load generator for HospitalApi ("Ehospital --bench"). After seeding, it
+//runs each operation as its own timed phase (warm-up first, then measurement) on all
+//threads and reports throughput with median and 99th percentile latency, in the spirit
+//of a JMH run but without the harness, which this source-only tree cannot pull in.
+class LoadDriver
+{
+    private final HospitalApi api;
+    private final int patients;
+    private final int threads;
+
+    LoadDriver(HospitalApi api,int patients,int threads)
+    {
+        this.api=api;
+        this.patients=patients;
+        this.threads=threads;
+    }
+
+    interface Op
+    {
+        void run(ThreadLocalRandom rnd,int thread,long n) throws IOException;
+    }
+
+    //Registering the data set in store batches; file names are p0..p<patients-1>
+    static void seed(RecordStore store,PatientLookup index,int patients) throws IOException
+    {
+        String date=HospitalApi.now();
+        List<String> keys=new ArrayList<>();
+        List<RecordEntry> entries=new ArrayList<>();
+        long start=System.nanoTime();
+        for(int p=0;p<patients;p++)
+        {
+            keys.add("p"+p);
+            entries.add(RecordEntry.demographics(date,"Patient "+p,"Ward street "+p,9000000000L+p,p%90,p%2==0?"M":"F","O+","none",p));
+            if(keys.size()==BulkImporter.CHUNK||p==patients-1)
+            {
+                store.createAll(keys,entries);
+                int base=p-keys.size()+1;
+                if(index!=null)
+                    for(int i=0;i<keys.size();i++)
+                        index.add(base+i,"Patient "+(base+i),9000000000L+base+i,keys.get(i));
+                keys.clear();
+                entries.clear();
+            }
+        }
+        System.out.printf("Seeded %d patients in %.1f s%n",patients,(System.nanoTime()-start)/1e9);
+    }
+
+    void runAll(double seconds) throws InterruptedException
+    {
+        System.out.printf("%-18s %12s %12s %12s %10s%n","operation","ops/s","p50 (us)","p99 (us)","errors");
+        phase("createPatient",seconds,(rnd,t,n)->api.createPatient("new"+t+"_"+n,"New patient "+n,"Street",9100000000L+n,30,"F","A+","none",10_000_000L*(t+1)+n));
+        phase("appendDiagnosis",seconds,(rnd,t,n)->api.appendDiagnosis("p"+rnd.nextInt(patients),"Dr "+rnd.nextInt(50),"fever","flu","Paracetamol","Y","General"));
+        phase("readHistory",seconds,(rnd,t,n)->api.readHistory("p"+rnd.nextInt(patients),0,Long.MAX_VALUE,true,0,10));
+        phase("computeBill",seconds,(rnd,t,n)->api.computeBill("p"+rnd.nextInt(patients),3,1000,500,200));
+    }
+
+    //Latencies (ns) sampled by one thread, with the number of operations and failures
+    private static class Result
+    {
+        long[] latencies=new long[1<<12];
+        int samples;
+        long ops;
+        long errors;
+
+        void record(long ns,ThreadLocalRandom rnd)
+        {
+            ops++;
+            if(samples<latencies.length)
+                latencies[samples++]=ns;
+            else if(latencies.length<SAMPLE_CAP)
+            {
+                latencies=Arrays.copyOf(latencies,latencies.length*2);
+                latencies[samples++]=ns;
+            }
+            else
+            {
+                //Reservoir sampling keeps a uniform sample once the buffer is full
+                long slot=rnd.nextLong(ops);
+                if(slot<latencies.length)
+                    latencies[(int)slot]=ns;
+            }
+        }
+    }
+
+    private static final int SAMPLE_CAP=1<<20;
+
+    private void phase(String name,double seconds,Op op) throws InterruptedException
+    {
+        run(op,seconds/5);
+        long start=System.nanoTime();
+        Result[] results=run(op,seconds);
+        double elapsed=(System.nanoTime()-start)/1e9;
+        long ops=0,errors=0;
+        int total=0;
+        for(Result r:results)
+        {
+            ops+=r.ops;
+            errors+=r.errors;
+            total+=r.samples;
+        }
+        long[] all=new long[total];
+        int at=0;
+        for(Result r:results)
+        {
+            System.arraycopy(r.latencies,0,all,at,r.samples);
+            at+=r.samples;
+        }
+        Arrays.sort(all);
+        double p50=total==0?0:all[total/2]/1e3;
+        double p99=total==0?0:all[Math.min(total-1,(int)(total*0.99))]/1e3;
+        System.out.printf("%-18s %12.0f %12.1f %12.1f %10d%n",name,ops/elapsed,p50,p99,errors);
+    }
+
+    //Runs op on every thread until the time is up
+    private Result[] run(Op op,double seconds) throws InterruptedException
+    {
+        Result[] results=new Result[threads];
+        Thread[] workers=new Thread[threads];
+        CountDownLatch go=new CountDownLatch(1);
+        AtomicLong sequence=new AtomicLong();
+        for(int t=0;t<threads;t++)
+        {
+            int thread=t;
+            results[t]=new Result();
+            workers[t]=new Thread(()->{
+                Result r=results[thread];
+                ThreadLocalRandom rnd=ThreadLocalRandom.current();
+                try
+                {
+                    go.await();
+                }
+                catch(InterruptedException e)
+                {
+                    return;
+                }
+                long deadline=System.nanoTime()+(long)(seconds*1e9);
+                long t0;
+                while((t0=System.nanoTime())<deadline)
+                {
+                    try
+                    {
+                        op.run(rnd,thread,sequence.getAndIncrement());
+                    }
+                    catch(IOException|RuntimeException e)
+                    {
+                        r.errors++;
+                    }
+                    r.record(System.nanoTime()-t0,rnd);
+                }
+            },"load-"+t);
+            workers[t].start();
+        }
+        go.countDown();
+        for(Thread w:workers)
+            w.join();
+        return results;
+    }
+}
+
+//Size-bounded LRU cache of parsed patient records in front of a record store. Appends
+//and creates go through to the store and update the cached copy (write-through). A
+//cached record is checked against the store's stamp before it is used (at most every
+//VALIDATE_NANOS for entry reads), so a record changed by a write that bypassed this
+//cache is reloaded instead of served stale. That covers other terminals only when the
+//stamp comes from the store that takes their writes: a terminal's cache over the record
+//server, or the server's own cache. A local records.db is locked by the process that
+//opened it, so no other process writes it meanwhile.
+class CachingRecordStore implements RecordStore
+{
+    private static final long VALIDATE_NANOS=50_000_000L;
+
+    private static class Cached
+    {
+        final List<RecordEntry> entries;
+        long stamp;
+        long checkedAt;
+        Cached(List<RecordEntry> entries,long stamp)
+        {
+            this.entries=entries;
+            this.stamp=stamp;
+            this.checkedAt=System.nanoTime();
+        }
+    }
+
+    private final RecordStore store;
+    //Upper bound on the number of entries held across all cached records
+    private final int maxEntries;
+    private final LinkedHashMap<String,Cached> cache=new LinkedHashMap<>(256,0.75f,true);
+    private int entries;
+    final AtomicLong hits=new AtomicLong();
+    final AtomicLong misses=new AtomicLong();
+    final AtomicLong invalidations=new AtomicLong();
+    final AtomicLong evictions=new AtomicLong();
+
+    CachingRecordStore(RecordStore store,int maxEntries)
+    {
+        this.store=store;
+        this.maxEntries=maxEntries;
+    }
+
+    public boolean exists(String key) throws IOException
+    {
+        synchronized(this)
+        {
+            if(cache.containsKey(key))
+                return true;
+        }
+        return store.exists(key);
+    }
+
+    public void create(String key,RecordEntry demographics) throws IOException
+    {
+        store.create(key,demographics);
+        List<RecordEntry> fresh=new ArrayList<>();
+        fresh.add(demographics);
+        put(key,fresh,store.stamp(key));
+    }
+
+    public void createAll(List<String> keys,List<RecordEntry> demographics) throws IOException
+    {
+        store.createAll(keys,demographics);
+        synchronized(this)
+        {
+            for(String key:keys)
+                drop(key);
+        }
+    }
+
+    public void append(String key,RecordEntry entry) throws IOException
+    {
+        store.append(key,entry);
+        long stamp=store.stamp(key);
+        int n=store.count(key);
+        synchronized(this)
+        {
+            Cached c=cache.get(key);
+            if(c==null)
+                return;
+            //Only extend the copy if nobody else wrote before or after this entry
+            if(c.entries.size()+1==n)
+            {
+                c.entries.add(entry);
+                c.stamp=stamp;
+                entries++;
+                trim();
+            }
+            else
+                drop(key);
+        }
+    }
+
+    //Cached copies of the batch's records are dropped rather than extended
+    public void appendAll(List<String> keys,List<RecordEntry> entries) throws IOException
+    {
+        store.appendAll(keys,entries);
+        synchronized(this)
+        {
+            for(String key:keys)
+                drop(key);
+        }
+    }
+
+    public int count(String key) throws IOException
+    {
+        return get(key,true).entries.size();
+    }
+
+    public RecordEntry read(String key,int i) throws IOException
+    {
+        List<RecordEntry> e=get(key,false).entries;
+        synchronized(this)
+        {
+            if(i<0||i>=e.size())
+                throw new IndexOutOfBoundsException("Entry "+i+" of "+e.size());
+            return e.get(i);
+        }
+    }
+
+    public List<String> keys() throws IOException
+    {
+        return store.keys();
+    }
+
+    public long stamp(String key) throws IOException
+    {
+        return store.stamp(key);
+    }
+
+    public void remove(String key) throws IOException
+    {
+        store.remove(key);
+        synchronized(this)
+        {
+            drop(key);
+        }
+    }
+
+    String stats()
+    {
+        long h=hits.get(),m=misses.get();
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d invalidated, %d evicted, %d records / %d entries cached",
+            h,m,h+m==0?0:100.0*h/(h+m),invalidations.get(),evictions.get(),cache.size(),entries);
+    }
+
+    private Cached get(String key,boolean validate) throws IOException
+    {
+        Cached c;
+        synchronized(this)
+        {
+            c=cache.get(key);
+        }
+        if(c!=null)
+        {
+            long now=System.nanoTime();
+            if(!validate&&now-c.checkedAt<VALIDATE_NANOS)
+            {
+                hits.incrementAndGet();
+                return c;
+            }
+            if(store.stamp(key)==c.stamp)
+            {
+                c.checkedAt=now;
+                hits.incrementAndGet();
+                return c;
+            }
+            invalidations.incrementAndGet();
+        }
+        misses.incrementAndGet();
+        long stamp=store.stamp(key);
+        int n=store.count(key);
+        List<RecordEntry> loaded=new ArrayList<>(n);
+        for(int i=0;i<n;i++)
+            loaded.add(store.read(key,i));
+        return put(key,loaded,stamp);
+    }
+
+    private synchronized Cached put(String key,List<RecordEntry> loaded,long stamp)
+    {
+        drop(key);
+        Cached c=new Cached(loaded,stamp);
+        //A record larger than the whole cache is served but not kept
+        if(loaded.size()>maxEntries)
+            return c;
+        cache.put(key,c);
+        entries+=loaded.size();
+        trim();
+        return c;
+    }
+
+    private void drop(String key)
+    {
+        Cached old=cache.remove(key);
+        if(old!=null)
+            entries-=old.entries.size();
+    }
+
+    private void trim()
+    {
+        Iterator<Map.Entry<String,Cached>> it=cache.entrySet().iterator();
+        while(entries>maxEntries&&it.hasNext())
+        {
+            entries-=it.next().getValue().entries.size();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+}
+
+//Compressed archive of discharged patients. Records are packed several at a time into
+//blocks of about BLOCK bytes that are deflated and appended to "<name>.dat"; each block
+//is framed with its raw and compressed length and a CRC of the raw bytes. "<name>.idx"
+//is an append-only list of (file name, block position) pairs loaded into memory on open,
+//a position of -1 meaning the record was taken back out. Reading an archived record
+//inflates the one block holding it; the last few inflated blocks are kept.
+class RecordArchive
+{
+    static final int BLOCK=64*1024;
+    private static final int MAGIC=0x45484142;
+    private static final int FRAME=16;
+    private static final int DECODED_BLOCKS=16;
+
+    private final RandomAccessFile data;
+    private final RandomAccessFile idx;
+    private final Map<String,Long> blockOf=new HashMap<>();
+    private final Map<Long,Map<String,List<RecordEntry>>> decoded=new LinkedHashMap<Long,Map<String,List<RecordEntry>>>(DECODED_BLOCKS,0.75f,true)
+    {
+        protected boolean removeEldestEntry(Map.Entry<Long,Map<String,List<RecordEntry>>> eldest)
+        {
+            return size()>DECODED_BLOCKS;
+        }
+    };
+    //Totals over every block in the archive, superseded records included
+    private long blocks,rawBytes,storedBytes;
+
+    RecordArchive(String name) throws IOException
+    {
+        data=new RandomAccessFile(name+".dat","rw");
+        idx=new RandomAccessFile(name+".idx","rw");
+        loadIndex();
+        scanBlocks();
+    }
+
+    synchronized boolean contains(String key)
+    {
+        return blockOf.containsKey(key);
+    }
+
+    synchronized Set<String> keys()
+    {
+        return new HashSet<>(blockOf.keySet());
+    }
+
+    //The entries of an archived record, or null if the record is not in the archive
+    synchronized List<RecordEntry> entries(String key) throws IOException
+    {
+        Long at=blockOf.get(key);
+        if(at==null)
+            return null;
+        Map<String,List<RecordEntry>> block=decoded.get(at);
+        if(block==null)
+        {
+            block=decode(at);
+            decoded.put(at,block);
+        }
+        return block.get(key);
+    }
+
+    //Writing the records as one block; returns the raw and compressed size of the block
+    synchronized long[] write(Map<String,List<RecordEntry>> records) throws IOException
+    {
+        ByteArrayOutputStream buf=new ByteArrayOutputStream(BLOCK+BLOCK/4);
+        DataOutputStream out=new DataOutputStream(buf);
+        out.writeInt(records.size());
+        for(Map.Entry<String,List<RecordEntry>> r:records.entrySet())
+        {
+            out.writeUTF(r.getKey());
+            out.writeInt(r.getValue().size());
+            for(RecordEntry e:r.getValue())
+            {
+                byte[] body=e.toBytes();
+                out.writeInt(body.length);
+                out.write(body);
+            }
+        }
+        byte[] raw=buf.toByteArray();
+        Deflater deflater=new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream packed=new ByteArrayOutputStream(raw.length/4+64);
+        byte[] chunk=new byte[8192];
+        while(!deflater.finished())
+            packed.write(chunk,0,deflater.deflate(chunk));
+        deflater.end();
+        CRC32 crc=new CRC32();
+        crc.update(raw);
+        ByteBuffer frame=ByteBuffer.allocate(FRAME+packed.size());
+        frame.putInt(MAGIC).putInt(raw.length).putInt(packed.size()).putInt((int)crc.getValue()).put(packed.toByteArray());
+        long at=data.length();
+        data.seek(at);
+        data.write(frame.array());
+        data.getChannel().force(false);
+        //The block is on disk before the index points at it
+        ByteArrayOutputStream entries=new ByteArrayOutputStream();
+        DataOutputStream e=new DataOutputStream(entries);
+        for(String key:records.keySet())
+        {
+            e.writeUTF(key);
+            e.writeLong(at);
+            blockOf.put(key,at);
+        }
+        appendIndex(entries.toByteArray());
+        blocks++;
+        rawBytes+=raw.length;
+        storedBytes+=frame.capacity();
+        return new long[]{raw.length,frame.capacity()};
+    }
+
+    //Taking a record out of the archive once it is live again
+    synchronized void forget(String key) throws IOException
+    {
+        if(blockOf.remove(key)==null)
+            return;
+        ByteArrayOutputStream entry=new ByteArrayOutputStream();
+        DataOutputStream e=new DataOutputStream(entry);
+        e.writeUTF(key);
+        e.writeLong(-1);
+        appendIndex(entry.toByteArray());
+    }
+
+    synchronized String stats()
+    {
+        return String.format("%d patient(s) in %d block(s), %s of records stored in %s (%.1f%% saved)",
+            blockOf.size(),blocks,kb(rawBytes),kb(storedBytes),rawBytes==0?0:100.0*(rawBytes-storedBytes)/rawBytes);
+    }
+
+    static String kb(long bytes)
+    {
+        return String.format("%.1f KB",bytes/1024.0);
+    }
+
+    synchronized void close() throws IOException
+    {
+        data.close();
+        idx.close();
+    }
+
+    private void appendIndex(byte[] entries) throws IOException
+    {
+        idx.seek(idx.length());
+        idx.write(entries);
+        idx.getChannel().force(false);
+    }
+
+    private Map<String,List<RecordEntry>> decode(long at) throws IOException
+    {
+        byte[] head=new byte[FRAME];
+        data.seek(at);
+        data.readFully(head);
+        ByteBuffer h=ByteBuffer.wrap(head);
+        if(h.getInt(0)!=MAGIC)
+            throw new IOException("Archive block at "+at+" is damaged");
+        byte[] packed=new byte[h.getInt(8)];
+        data.readFully(packed);
+        byte[] raw=new byte[h.getInt(4)];
+        Inflater inflater=new Inflater();
+        try
+        {
+            inflater.setInput(packed);
+            int n=0;
+            while(n<raw.length&&!inflater.finished())
+                n+=inflater.inflate(raw,n,raw.length-n);
+        }
+        catch(DataFormatException e)
+        {
+            throw new IOException("Archive block at "+at+" is damaged: "+e.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+        }
+        CRC32 crc=new CRC32();
+        crc.update(raw);
+        if((int)crc.getValue()!=h.getInt(12))
+            throw new IOException("Archive block at "+at+" fails its checksum");
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(raw));
+        Map<String,List<RecordEntry>> out=new HashMap<>();
+        for(int r=in.readInt();r>0;r--)
+        {
+            String key=in.readUTF();
+            int count=in.readInt();
+            List<RecordEntry> entries=new ArrayList<>(count);
+            for(int i=0;i<count;i++)
+            {
+                byte[] body=new byte[in.readInt()];
+                in.readFully(body);
+                entries.add(RecordEntry.fromBytes(body,0,body.length));
+            }
+            out.put(key,entries);
+        }
+        return out;
+    }
+
+    //A torn entry at the end of the index (crash while archiving) is cut off
+    private void loadIndex() throws IOException
+    {
+        byte[] all=new byte[(int)idx.length()];
+        idx.seek(0);
+        idx.readFully(all);
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(all));
+        int good=0;
+        try
+        {
+            while(good<all.length)
+            {
+                String key=in.readUTF();
+                long at=in.readLong();
+                if(at<0)
+                    blockOf.remove(key);
+                else
+                    blockOf.put(key,at);
+                good=all.length-in.available();
+            }
+        }
+        catch(EOFException|UTFDataFormatException e)
+        {
+            idx.setLength(good);
+        }
+    }
+
+    //Reading only the block frames for the space totals; a torn last block is cut off
+    private void scanBlocks() throws IOException
+    {
+        long at=0,end=data.length();
+        while(at+FRAME<=end)
+        {
+            data.seek(at);
+            if(data.readInt()!=MAGIC)
+                break;
+            int raw=data.readInt(),packed=data.readInt();
+            if(at+FRAME+packed>end)
+                break;
+            blocks++;
+            rawBytes+=raw;
+            storedBytes+=FRAME+packed;
+            at+=FRAME+packed;
+        }
+        if(at<end)
+            data.setLength(at);
+    }
+}
+
+//Record store in front of the live store and the archive. A record is looked up in the
+//live store first and then in the archive, so it stays readable after being archived.
+//Writing to an archived record (a patient admitted again) first restores it to the live
+//store.
+class ArchivedRecordStore implements RecordStore
+{
+    //Default for --archive: discharged patients untouched for this many days
+    static final int IDLE_DAYS=90;
+
+    private final RecordStore live;
+    private final RecordArchive archive;
+
+    ArchivedRecordStore(RecordStore live,RecordArchive archive)
+    {
+        this.live=live;
+        this.archive=archive;
+    }
+
+    public boolean exists(String key) throws IOException
+    {
+        return live.exists(key)||archive.contains(key);
+    }
+
+    public void create(String key,RecordEntry demographics) throws IOException
+    {
+        live.create(key,demographics);
+        archive.forget(key);
+    }
+
+    public void createAll(List<String> keys,List<RecordEntry> demographics) throws IOException
+    {
+        live.createAll(keys,demographics);
+        for(String key:keys)
+            archive.forget(key);
+    }
+
+    public void append(String key,RecordEntry entry) throws IOException
+    {
+        if(!live.exists(key))
+            restore(key);
+        live.append(key,entry);
+    }
+
+    public void appendAll(List<String> keys,List<RecordEntry> entries) throws IOException
+    {
+        for(String key:keys)
+            if(!live.exists(key))
+                restore(key);
+        live.appendAll(keys,entries);
+    }
+
+    public int count(String key) throws IOException
+    {
+        return live.exists(key)?live.count(key):archived(key).size();
+    }
+
+    public RecordEntry read(String key,int i) throws IOException
+    {
+        if(live.exists(key))
+            return live.read(key,i);
+        List<RecordEntry> e=archived(key);
+        if(i<0||i>=e.size())
+            throw new IndexOutOfBoundsException("Entry "+i+" of "+e.size());
+        return e.get(i);
+    }
+
+    //Archived records never change; the sign bit keeps their stamps apart from live ones
+    public long stamp(String key) throws IOException
+    {
+        return live.exists(key)?live.stamp(key):Long.MIN_VALUE|archived(key).size();
+    }
+
+    public List<String> keys() throws IOException
+    {
+        Set<String> all=new LinkedHashSet<>(live.keys());
+        all.addAll(archive.keys());
+        return new ArrayList<>(all);
+    }
+
+    public void remove(String key) throws IOException
+    {
+        if(live.exists(key))
+            live.remove(key);
+        archive.forget(key);
+    }
+
+    //Moving every discharged record (billed, with no visit after the bill) whose newest entry is older than
+    //before into the archive; returns {records, raw bytes, archived bytes}
+    long[] archiveIdle(long before) throws IOException
+    {
+        long[] total=new long[3];
+        Map<String,List<RecordEntry>> batch=new LinkedHashMap<>();
+        long batchBytes=0;
+        for(String key:live.keys())
+        {
+            //A record in both places was left by an interrupted move; the live copy wins
+            archive.forget(key);
+            List<RecordEntry> entries=dischargedBefore(key,before);
+            if(entries==null)
+                continue;
+            batch.put(key,entries);
+            for(RecordEntry e:entries)
+                batchBytes+=e.toBytes().length+4;
+            if(batchBytes>=RecordArchive.BLOCK)
+            {
+                flush(batch,total);
+                batchBytes=0;
+            }
+        }
+        flush(batch,total);
+        return total;
+    }
+
+    private List<RecordEntry> dischargedBefore(String key,long before) throws IOException
+    {
+        int n=live.count(key);
+        RecordEntry last=live.read(key,n-1);
+        //Entries converted from text files without a readable date are never archived
+        if(last.time==0||last.time>=before)
+            return null;
+        List<RecordEntry> entries=new ArrayList<>(n);
+        boolean billed=false;
+        for(int i=n-1;i>=0&&!billed;i--)
+        {
+            RecordEntry e=i==n-1?last:live.read(key,i);
+            if(e.type==RecordEntry.VISIT)
+                return null;
+            billed=e.type==RecordEntry.BILL;
+        }
+        if(!billed)
+            return null;
+        for(int i=0;i<n;i++)
+            entries.add(i==n-1?last:live.read(key,i));
+        return entries;
+    }
+
+    //The block is written and forced before the live copies are removed
+    private void flush(Map<String,List<RecordEntry>> batch,long[] total) throws IOException
+    {
+        if(batch.isEmpty())
+            return;
+        long[] sizes=archive.write(batch);
+        for(String key:batch.keySet())
+            live.remove(key);
+        total[0]+=batch.size();
+        total[1]+=sizes[0];
+        total[2]+=sizes[1];
+        batch.clear();
+    }
+
+    private List<RecordEntry> archived(String key) throws IOException
+    {
+        List<RecordEntry> e=archive.entries(key);
+        if(e==null)
+            throw new FileNotFoundException(key);
+        return e;
+    }
+
+    //Copying an archived record back into the live store before it is written to
+    private synchronized void restore(String key) throws IOException
+    {
+        if(live.exists(key))
+            return;
+        List<RecordEntry> e=archived(key);
+        live.create(key,e.get(0));
+        for(int i=1;i<e.size();i++)
+            live.append(key,e.get(i));
+        archive.forget(key);
+    }
+}
+
+//One main menu entry: the key that picks it, its label and the action it runs
+class Command
+{
+    final char key;
+    final String label;
+    final Runnable action;
+    Command(char key,String label,Runnable action)
+    {
+        this.key=key;
+        this.label=label;
+        this.action=action;
+    }
+}
+
+//Persistent patient index: patient ID, contact number and name prefix -> file name
+//The lookup table is an open-addressing hash file (memory mapped) whose slots hold the
+//position of the newest matching entry in the data file; entries with the same key are
+//chained through the data file, so a lookup is one probe plus the matching entries.
+class PatientIndex implements PatientLookup
+{
+    static final int ID=0;
+    static final int CONTACT=1;
+    static final int NAME=2;
+    //Name prefixes of length 1..PREFIX_KEYS are indexed separately
+    static final int PREFIX_KEYS=3;
+    private static final int MAGIC=0x50494458;
+    private static final int HEADER=16;
+    private static final int SLOT=24;
+    private static final int CHAINS=2+PREFIX_KEYS;
+
+    //One indexed patient
+    static class Entry
+    {
+        final long id;
+        final long contact;
+        final String name;
+        final String fileName;
+        Entry(long id,long contact,String name,String fileName)
+        {
+            this.id=id;
+            this.contact=contact;
+            this.name=name;
+            this.fileName=fileName;
+        }
+        public String toString()
+        {
+            return "ID "+id+" | "+name+" | "+contact+" | file: "+fileName;
+        }
+    }
+
+    private final File tableFile;
+    private final RandomAccessFile data;
+    private RandomAccessFile table;
+    private MappedByteBuffer slots;
+    private int capacity;
+    private int used;
+
+    PatientIndex(String baseName) throws IOException
+    {
+        tableFile=new File(baseName+".idx");
+        data=new RandomAccessFile(baseName+".dat","rw");
+        boolean fresh=!tableFile.exists()||tableFile.length()<HEADER;
+        openTable(tableFile,fresh?1<<12:0);
+    }
+
+    private void openTable(File f,int newCapacity) throws IOException
+    {
+        table=new RandomAccessFile(f,"rw");
+        if(newCapacity>0)
+        {
+            table.setLength(HEADER+(long)newCapacity*SLOT);
+            table.seek(0);
+            table.writeInt(MAGIC);
+            table.writeInt(newCapacity);
+            table.writeInt(0);
+        }
+        table.seek(0);
+        if(table.readInt()!=MAGIC)
+            throw new IOException("Not a patient index: "+f);
+        capacity=table.readInt();
+        used=table.readInt();
+        slots=table.getChannel().map(FileChannel.MapMode.READ_WRITE,0,HEADER+(long)capacity*SLOT);
+    }
+
+    //Records a new patient file; called on every patient() write
+    public synchronized void add(long id,String name,long contact,String fileName) throws IOException
+    {
+        String norm=normalize(name);
+        int prefixes=Math.min(PREFIX_KEYS,norm.length());
+        if((used+2+prefixes)*10L>capacity*6L)
+            grow();
+        long[] heads=new long[CHAINS];
+        heads[0]=head(ID,id);
+        heads[1]=head(CONTACT,contact);
+        for(int p=0;p<prefixes;p++)
+            heads[2+p]=head(NAME,prefixKey(norm.substring(0,p+1)));
+        //Encoding the entry first so it reaches the file in one write
+        ByteArrayOutputStream buf=new ByteArrayOutputStream(128);
+        DataOutputStream out=new DataOutputStream(buf);
+        for(long h:heads)
+            out.writeLong(h);
+        out.writeLong(id);
+        out.writeLong(contact);
+        out.writeUTF(name);
+        out.writeUTF(fileName);
+        long pos=data.length();
+        data.seek(pos);
+        data.write(buf.toByteArray());
+        setHead(ID,id,pos+1);
+        setHead(CONTACT,contact,pos+1);
+        for(int p=0;p<prefixes;p++)
+            setHead(NAME,prefixKey(norm.substring(0,p+1)),pos+1);
+    }
+
+    public synchronized List<Entry> byId(long id) throws IOException
+    {
+        return walk(0,head(ID,id),e->e.id==id);
+    }
+
+    public synchronized List<Entry> byContact(long contact) throws IOException
+    {
+        return walk(1,head(CONTACT,contact),e->e.contact==contact);
+    }
+
+    //Follows the chain of the longest indexed prefix and filters on the full prefix
+    public synchronized List<Entry> byNamePrefix(String prefix) throws IOException
+    {
+        String norm=normalize(prefix);
+        if(norm.isEmpty())
+            return new ArrayList<>();
+        int p=Math.min(PREFIX_KEYS,norm.length());
+        return walk(1+p,head(NAME,prefixKey(norm.substring(0,p))),e->normalize(e.name).startsWith(norm));
+    }
+
+    synchronized void close() throws IOException
+    {
+        slots.force();
+        table.close();
+        data.close();
+    }
+
+    private List<Entry> walk(int chain,long ref,java.util.function.Predicate<Entry> match) throws IOException
+    {
+        List<Entry> out=new ArrayList<>();
+        byte[] buf=new byte[512];
+        while(ref!=0)
+        {
+            long pos=ref-1;
+            int n=(int)Math.min(buf.length,data.length()-pos);
+            data.seek(pos);
+            data.readFully(buf,0,n);
+            DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf,0,n));
+            in.skipBytes(chain*8);
+            long next=in.readLong();
+            in.skipBytes((CHAINS-chain-1)*8);
+            long id=in.readLong();
+            long contact=in.readLong();
+            Entry e;
+            try
+            {
+                e=new Entry(id,contact,in.readUTF(),in.readUTF());
+            }
+            catch(EOFException longEntry)
+            {
+                //Unusually long name or file name, read straight from the file
+                data.seek(pos+CHAINS*8L+16);
+                e=new Entry(id,contact,data.readUTF(),data.readUTF());
+            }
+            if(match.test(e))
+                out.add(e);
+            ref=next;
+        }
+        return out;
+    }
+
+    private int probe(int type,long key)
+    {
+        int mask=capacity-1;
+        int i=(int)mix(key*31+type)&mask;
+        while(true)
+        {
+            int at=HEADER+i*SLOT;
+            long ref=slots.getLong(at+16);
+            if(ref==0||(slots.getLong(at)==key&&slots.getLong(at+8)==type))
+                return at;
+            i=(i+1)&mask;
+        }
+    }
+
+    private long head(int type,long key)
+    {
+        return slots.getLong(probe(type,key)+16);
+    }
+
+    private void setHead(int type,long key,long ref)
+    {
+        int at=probe(type,key);
+        if(slots.getLong(at+16)==0)
+        {
+            used++;
+            slots.putInt(8,used);
+        }
+        slots.putLong(at,key);
+        slots.putLong(at+8,type);
+        slots.putLong(at+16,ref);
+    }
+
+    //Doubles the hash file and reinserts every live slot
+    private void grow() throws IOException
+    {
+        MappedByteBuffer old=slots;
+        int oldCapacity=capacity;
+        File tmp=new File(tableFile.getPath()+".tmp");
+        tmp.delete();
+        RandomAccessFile oldTable=table;
+        openTable(tmp,oldCapacity*2);
+        for(int i=0;i<oldCapacity;i++)
+        {
+            int at=HEADER+i*SLOT;
+            long ref=old.getLong(at+16);
+            if(ref!=0)
+                setHead((int)old.getLong(at+8),old.getLong(at),ref);
+        }
+        slots.force();
+        oldTable.close();
+        table.close();
+        Files.move(tmp.toPath(),tableFile.toPath(),StandardCopyOption.REPLACE_EXISTING);
+        openTable(tableFile,0);
+    }
+
+    static String normalize(String name)
+    {
+        return name==null?"":name.trim().toLowerCase().replaceAll("\\s+"," ");
+    }
+
+    private static long prefixKey(String prefix)
+    {
+        long h=0xcbf29ce484222325L;
+        for(int i=0;i<prefix.length();i++)
+        {
+            h^=prefix.charAt(i);
+            h*=0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long mix(long z)
+    {
+        z=(z^(z>>>33))*0xff51afd7ed558ccdL;
+        z=(z^(z>>>33))*0xc4ceb9fe1a85ec53L;
+        return z^(z>>>33);
+    }
+}
+public class Ehospital
+{
+public static void main (String args[])
+{
+  if(args.length>0&&args[0].equals("--convert"))
+  {
+    try
+    {
+      FileRecordStore files=new FileRecordStore(new File("."));
+      int n=files.convertAll();
+      PagedRecordStore paged=new PagedRecordStore(new File("records.db"),1024,files);
+      int moved=0;
+      for(String key:files.keys())
+        if(paged.exists(key))
+          moved++;
+      paged.close();
+      System.out.println(n+" text file(s) converted, "+moved+" patient record(s) now in records.db");
+    }
+    catch(IOException e)
+    {
+      System.out.println("Conversion failed: "+e.getMessage());
+    }
+    return;
+  }
+  if(args.length>1&&args[0].equals("--import"))
+  {
+    try
+    {
+      //The same store the menu opens, so names of archived and unconverted patients count as taken
+      PatientIndex index=new PatientIndex("patients");
+      PagedRecordStore store=new PagedRecordStore(new File("records.db"),4096,new FileRecordStore(new File(".")));
+      RecordArchive archive=new RecordArchive("archive");
+      new BulkImporter(new ArchivedRecordStore(store,archive),index,Runtime.getRuntime().availableProcessors()).run(new File(args[1]));
+      archive.close();
+      store.close();
+      index.close();
+    }
+    catch(IOException e)
+    {
+      System.out.println("Import failed: "+e.getMessage());
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    return;
+  }
+  if(args.length>0&&args[0].equals("--bench"))
+  {
+    int patients=args.length>1?Integer.parseInt(args[1]):1_000_000;
+    int threads=args.length>2?Integer.parseInt(args[2]):Runtime.getRuntime().availableProcessors();
+    double seconds=args.length>3?Double.parseDouble(args[3]):10;
+    try
+    {
+      File dir=new File("bench");
+      dir.mkdirs();
+      File db=new File(dir,"records.db");
+      boolean seeded=db.exists();
+      PatientIndex index=new PatientIndex(new File(dir,"patients").getPath());
+      PagedRecordStore store=new PagedRecordStore(db,8192,null);
+      if(!seeded||store.keys().size()<patients)
+        LoadDriver.seed(store,index,patients);
+      CachingRecordStore cache=new CachingRecordStore(store,Info.CACHE_ENTRIES);
+      new LoadDriver(new HospitalApi(cache,index),patients,threads).runAll(seconds);
+      long[] pool=store.poolStats();
+      System.out.printf("Buffer pool: %d hits, %d misses%n",pool[0],pool[1]);
+      System.out.println("Record cache: "+cache.stats());
+      store.close();
+      index.close();
+    }
+    catch(IOException e)
+    {
+      System.out.println("Benchmark failed: "+e.getMessage());
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    return;
+  }
+  if(args.length>0&&args[0].equals("--reindex"))
+  {
+    try
+    {
+      ClinicalIndex clinical=new ClinicalIndex(new File("clinical.log"));
+      //Patients still in their own files are copied in first, so their visits are indexed too
+      FileRecordStore files=new FileRecordStore(new File("."));
+      PagedRecordStore store=new PagedRecordStore(new File("records.db"),4096,files);
+      files.convertAll();
+      for(String key:files.keys())
+        store.exists(key);
+      RecordArchive archive=new RecordArchive("archive");
+      System.out.println(clinical.rebuild(new ArchivedRecordStore(store,archive))+" visit(s) indexed");
+      clinical.close();
+      archive.close();
+      store.close();
+    }
+    catch(IOException e)
+    {
+      System.out.println("Reindexing failed: "+e.getMessage());
+    }
+    return;
+  }
+  if(args.length>0&&args[0].equals("--archive"))
+  {
+    int days=args.length>1?Integer.parseInt(args[1]):ArchivedRecordStore.IDLE_DAYS;
+    try
+    {
+      PagedRecordStore store=new PagedRecordStore(new File("records.db"),4096,new FileRecordStore(new File(".")));
+      RecordArchive archive=new RecordArchive("archive");
+      long[] moved=new ArchivedRecordStore(store,archive).archiveIdle(System.currentTimeMillis()-days*86_400_000L);
+      System.out.printf("%d discharged patient(s) idle for %d day(s) archived: %s of records stored in %s (%.1f%% saved)%n",
+        moved[0],days,RecordArchive.kb(moved[1]),RecordArchive.kb(moved[2]),moved[1]==0?0:100.0*(moved[1]-moved[2])/moved[1]);
+      System.out.println("Archive: "+archive.stats());
+      archive.close();
+      store.close();
+    }
+    catch(IOException e)
+    {
+      System.out.println("Archiving failed: "+e.getMessage());
+    }
+    return;
+  }
+  if(args.length>0&&args[0].equals("--server"))
+  {
+    int port=args.length>1?Integer.parseInt(args[1]):RecordServer.DEFAULT_PORT;
+    try
+    {
+      PatientIndex index=new PatientIndex("patients");
+      RecordStore store=new ArchivedRecordStore(new PagedRecordStore(new File("records.db"),4096,new FileRecordStore(new File("."))),new RecordArchive("archive"));
+      ClinicalIndex clinical=new ClinicalIndex(new File("clinical.log"));
+      new RecordServer(new CachingRecordStore(new ClinicalIndexingStore(store,clinical),1_000_000),index,clinical).serve(port);
+    }
+    catch(IOException e)
+    {
+      System.out.println("Record server stopped: "+e.getMessage());
+    }
+    return;
+  }
+  Info i=new Info();
+  if(args.length>0&&args[0].equals("--connect"))
+  {
+    int port=args.length>1?Integer.parseInt(args[1]):RecordServer.DEFAULT_PORT;
+    try
+    {
+      i.connect(port);
+    }
+    catch(IOException e)
+    {
+      System.out.println("Unable to reach the record server on port "+port+": "+e.getMessage());
+      return;
+    }
+  }
+  else
+  {
+    try
+    {
+      i.openLocal();
+    }
+    catch(IOException e)
+    {
+      System.out.println("Unable to open the patient records: "+e.getMessage());
+      return;
+    }
+  }
+  if(i.login())
+    i.menu();
+  i.console.flush();
 }
 }
@@ -4,18 +4,58 @@ import javax.swing.event.ListSelectionEvent;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 /**
  * SmartSupplyApp.java — with theme toggle and enhanced login UI.
  */
 public class SmartSupplyApp {
-    // In‑memory data stores
-    private final Map<String, Product> products = new LinkedHashMap<>();
-    private final List<String> ledger = new ArrayList<>();
+    // In‑memory data stores, rebuilt from the ledger log on start
+    private final ProductState state = new ProductState();
+    private final Map<String, Product> products = state.products;
+    private final ProductColumns columns = new ProductColumns();
+    private final List<String> ledger = state.ledger;
+    private LedgerLog ledgerLog;
+    private LedgerShipper shipper;
     private final DefaultListModel<String> customerProductListModel = new DefaultListModel<>();
     private final DefaultListModel<String> deliveryProductListModel = new DefaultListModel<>();
 
@@ -34,7 +74,8 @@ public class SmartSupplyApp {
     private final JLabel statusBar = new JLabel("Welcome to SmartSupply demo");
     private final JTextArea ledgerArea = new JTextArea(6, 40);
 
-    private final DefaultListModel<String> chatModel = new DefaultListModel<>();
+    // Per-user support conversations (history cap, resident conversation cap)
+    private final ChatService chatService = new ChatService(Paths.get("chat"), 200, 10_000, new CannedResponder());
 
     // Theme state & colors
     private boolean darkMode = false;
@@ -43,7 +84,121 @@ public class SmartSupplyApp {
     private final Color DARK_BG = new Color(45, 45, 45);
     private final Color DARK_FG = new Color(230, 230, 230);
 
+    // Half-width (degrees) of the box searched by "In Transit Nearby"
+    private static final double NEARBY_RADIUS = 0.005;
+
+    // Where the ledger's segments live, and the port followers replicate it from
+    private static final Path LEDGER_DIR = Paths.get("ledger");
+    private static final int REPLICATION_PORT = 5180;
+    // Default home of a sharded product registry
+    private static final Path REGISTRY_DIR = Paths.get("registry");
+
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--follow")) {
+            // --follow [leader port] [http port] [directory]
+            int leaderPort = args.length > 1 ? Integer.parseInt(args[1]) : REPLICATION_PORT;
+            int httpPort = args.length > 2 ? Integer.parseInt(args[2]) : LedgerFollower.DEFAULT_HTTP_PORT;
+            Path dir = Paths.get(args.length > 3 ? args[3] : "ledger-replica");
+            try {
+                new LedgerFollower(dir, leaderPort).start(httpPort);
+            } catch (IOException e) {
+                System.out.println("Unable to start the follower: " + e.getMessage());
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--ledger-load")) {
+            // --ledger-load [events] [port] [directory]: headless leader appending status
+            // updates to its own ledger (a new temporary one by default, never the app's)
+            int events = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+            int port = args.length > 2 ? Integer.parseInt(args[2]) : REPLICATION_PORT;
+            try {
+                Path dir = args.length > 3 ? Paths.get(args[3]) : Files.createTempDirectory("ledger-load");
+                if (dir.toAbsolutePath().normalize().equals(LEDGER_DIR.toAbsolutePath().normalize())) {
+                    System.out.println("The load needs a ledger of its own, not the app's " + LEDGER_DIR);
+                    return;
+                }
+                System.out.println("Load ledger: " + dir);
+                ledgerLoad(dir, events, port);
+            } catch (IOException | InterruptedException e) {
+                System.out.println("Ledger load failed: " + e.getMessage());
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--shard-bench")) {
+            // --shard-bench [products] [updates] [max shards] [threads]
+            int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+            int updates = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+            int maxShards = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+            int threads = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+            try {
+                shardBench(count, updates, maxShards, threads);
+            } catch (IOException | InterruptedException e) {
+                System.out.println("Shard benchmark failed: " + e.getMessage());
+            }
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--registry-import")) {
+            // --registry-import <shards> [directory]: copies the app's ledger into a new registry
+            int count = Integer.parseInt(args[1]);
+            Path dir = args.length > 2 ? Paths.get(args[2]) : REGISTRY_DIR;
+            if (count < 1) {
+                System.out.println("A registry needs at least one shard");
+                return;
+            }
+            try {
+                System.out.println(ShardedRegistry.importLedger(LEDGER_DIR, dir, count) + " product(s) imported into " + dir);
+            } catch (IOException e) {
+                System.out.println("Registry import failed: " + e.getMessage());
+            }
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--registry")) {
+            // --registry (driver <name> | flagged | qr <code>) [directory]
+            boolean flagged = args[1].equals("flagged");
+            if (!flagged && args.length < 3) {
+                System.out.println("Usage: --registry (driver <name> | flagged | qr <code>) [directory]");
+                return;
+            }
+            int dirArg = flagged ? 2 : 3;
+            Path dir = args.length > dirArg ? Paths.get(args[dirArg]) : REGISTRY_DIR;
+            try {
+                ShardedRegistry registry = ShardedRegistry.open(dir);
+                List<Product> found;
+                if (flagged) {
+                    found = registry.flagged();
+                } else if (args[1].equals("driver")) {
+                    found = registry.assignedTo(args[2]);
+                } else if (args[1].equals("qr")) {
+                    Product p = registry.findByQr(args[2]);
+                    found = p == null ? Collections.emptyList() : Collections.singletonList(p);
+                } else {
+                    System.out.println("Unknown registry query: " + args[1]);
+                    registry.close();
+                    return;
+                }
+                for (Product p : found) System.out.println(p.id + "\t" + p.name + "\t" + p.status + "\t" + p.assignedDelivery);
+                System.out.println(found.size() + " of " + registry.size() + " product(s) across " + registry.shardCount() + " shard(s)");
+                registry.close();
+            } catch (IOException e) {
+                System.out.println("Registry query failed: " + e.getMessage());
+            }
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--rebalance")) {
+            // --rebalance <shards> [directory]
+            int to = Integer.parseInt(args[1]);
+            Path dir = args.length > 2 ? Paths.get(args[2]) : REGISTRY_DIR;
+            if (to < 1) {
+                System.out.println("A registry needs at least one shard");
+                return;
+            }
+            try {
+                System.out.println(ShardedRegistry.rebalance(dir, to) + " product(s) moved; " + dir + " now has " + to + " shards");
+            } catch (IOException e) {
+                System.out.println("Rebalance failed: " + e.getMessage());
+            }
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             try {
                 new SmartSupplyApp().start();
@@ -53,9 +208,125 @@ public class SmartSupplyApp {
         });
     }
 
+    // Registers a few products if the ledger has none, then appends status updates to
+    // them as fast as it can while followers replicate, reporting their lag until they
+    // catch up. The log is not synced per event here so the replication path is measured
+    private static void ledgerLoad(Path dir, int events, int port) throws IOException, InterruptedException {
+        ProductState state = new ProductState();
+        LedgerLog log = new LedgerLog(dir, false);
+        log.replay(state::apply);
+        LedgerShipper shipper = new LedgerShipper(log, port);
+        shipper.start();
+        if (state.products.isEmpty()) {
+            for (int i = 0; i < 100; i++) {
+                Product p = new Product(String.format("LOAD%03d", i), "Load Item " + i, "LoadCo", "LoadDist", "LoadMart",
+                        "DeliveryGuy" + (i % 4), 12.97 + i * 1e-4, 77.59 + i * 1e-4);
+                String e = ProductState.registered(p, System.currentTimeMillis());
+                log.append(e);
+                state.apply(e);
+            }
+        }
+        System.out.println("Leading on port " + port + "; waiting 3 s for followers to connect");
+        Thread.sleep(3000);
+        String[] statuses = {"Picked Up", "In Transit", "Delivered"};
+        List<Product> all = new ArrayList<>(state.products.values());
+        Random rnd = new Random();
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            Product p = all.get(rnd.nextInt(all.size()));
+            String e = ProductState.statusChanged(p.id, statuses[i % 3], "LoadBot",
+                    p.lat + (rnd.nextDouble() - 0.5) * 1e-4, p.lon + (rnd.nextDouble() - 0.5) * 1e-4, System.currentTimeMillis());
+            log.append(e);
+            state.apply(e);
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Appended %,d events in %.2f s (%,.0f/s)%n", events, secs, events / secs);
+        for (int i = 0; i < 60 && !(shipper.followerCount() > 0 && shipper.caughtUp()); i++) {
+            System.out.println(shipper.describe());
+            Thread.sleep(500);
+        }
+        System.out.printf("%s%nCaught up %.2f s after the first event%n", shipper.describe(), (System.nanoTime() - start) / 1e9);
+        log.close();
+    }
+
+    // Update throughput of a ShardedRegistry (ledgers synced per event) at 1, 2, 4, ...
+    // shards with the same writer threads, plus the time of the scatter-gather queries
+    private static void shardBench(int count, int updates, int maxShards, int threads) throws IOException, InterruptedException {
+        // An unreported pass warms up the JIT so the single-shard baseline is fair
+        shardBenchPass(1, count, Math.max(1, updates / 5), threads);
+        double base = 0;
+        for (int n = 1; n <= maxShards; n *= 2) {
+            double[] r = shardBenchPass(n, count, updates, threads);
+            if (n == 1) base = r[0];
+            System.out.printf("%d shard(s): %,.0f updates/s (%.2fx), driver/flagged query %.2f ms (%d hits)%n",
+                    n, r[0], r[0] / base, r[1], (long) r[2]);
+        }
+    }
+
+    // Returns updates per second, milliseconds per query and the number of query hits
+    private static double[] shardBenchPass(int n, int count, int updates, int threads) throws IOException, InterruptedException {
+        String[] statuses = {"Picked Up", "In Transit", "Delivered"};
+        Path dir = Files.createTempDirectory("shard-bench");
+        ShardedRegistry registry = new ShardedRegistry(dir, n, true);
+        for (int i = 0; i < count; i++) {
+            registry.register(new Product(String.format("PROD%06d", i), "Item " + i, "BenchCo", "BenchDist", "BenchMart",
+                    "DeliveryGuy" + (i % 50), 12.97, 77.59));
+            if (i % 100 == 0) registry.flag(String.format("PROD%06d", i), "BenchUser");
+        }
+        AtomicLong next = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                Random rnd = new Random();
+                try {
+                    for (long i; (i = next.getAndIncrement()) < updates; ) {
+                        registry.updateStatus(String.format("PROD%06d", rnd.nextInt(count)), statuses[(int) (i % 3)],
+                                "BenchBot", 12.97 + rnd.nextDouble() * 1e-3, 77.59 + rnd.nextDouble() * 1e-3);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Update failed: " + e.getMessage());
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) w.join();
+        double rate = updates / ((System.nanoTime() - start) / 1e9);
+        long q = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < 100; i++) {
+            found += registry.assignedTo("DeliveryGuy" + (i % 50)).size() + registry.flagged().size();
+        }
+        double queryMs = (System.nanoTime() - q) / 1e6 / 200;
+        registry.close();
+        deleteTree(dir);
+        return new double[]{rate, queryMs, found};
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
     private void start() {
-        createSampleProducts();
+        try {
+            ledgerLog = new LedgerLog(LEDGER_DIR, true);
+            ledgerLog.replay(state::apply);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "Unable to open the ledger: " + e.getMessage(), "Ledger", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        for (Product p : products.values()) columns.add(p);
+        if (products.isEmpty()) createSampleProducts();
+        rebuildLists();
         buildUI();
+        try {
+            shipper = new LedgerShipper(ledgerLog, REPLICATION_PORT);
+            shipper.start();
+        } catch (IOException e) {
+            statusBar.setText("Ledger replication unavailable: " + e.getMessage());
+        }
         frame.setSize(980, 700);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setLocationRelativeTo(null);
@@ -71,10 +342,22 @@ public class SmartSupplyApp {
     }
 
     private void addSampleProduct(Product p) {
-        products.put(p.id, p);
-        customerProductListModel.addElement(displayForList(p));
-        deliveryProductListModel.addElement(displayForList(p));
-        ledger.add(timestamp() + " - REGISTERED - " + p.id + " by " + p.manufacturer);
+        Product registered = record(ProductState.registered(p, System.currentTimeMillis()));
+        if (registered != null) columns.add(registered);
+    }
+
+    /**
+     * Appends the event to the ledger log and applies it to the products; returns the
+     * product it changed, or null if the log could not be written (nothing changes then).
+     */
+    private Product record(String event) {
+        try {
+            ledgerLog.append(event);
+        } catch (IOException e) {
+            statusBar.setText("Ledger write failed: " + e.getMessage());
+            return null;
+        }
+        return state.apply(event);
     }
 
     private String displayForList(Product p) {
@@ -311,7 +594,7 @@ public class SmartSupplyApp {
         return customerPanel;
     }
 
-    private String renderProductDetails(Product p) {
+    private static String renderProductDetails(Product p) {
         StringBuilder sb = new StringBuilder();
         sb.append("Product: ").append(p.name).append("\n");
         sb.append("ID: ").append(p.id).append("\n");
@@ -340,6 +623,7 @@ public class SmartSupplyApp {
         top.add(reportBtn, BorderLayout.EAST);
         d.add(top, BorderLayout.NORTH);
 
+        DefaultListModel<String> chatModel = new DefaultListModel<>();
         JList<String> chatList = new JList<>(chatModel);
         JScrollPane chatScroll = new JScrollPane(chatList);
         d.add(chatScroll, BorderLayout.CENTER);
@@ -351,25 +635,38 @@ public class SmartSupplyApp {
         sendPanel.add(sendBtn, BorderLayout.EAST);
         d.add(sendPanel, BorderLayout.SOUTH);
 
-        if (chatModel.getSize() == 0) {
-            chatModel.addElement("Support: Hello! How can we help you today?");
-        }
+        // History loads and messages arrive on the chat dispatcher; the listener hops back to the EDT
+        String user = currentUserName;
+        int cap = chatService.historyCap();
+        Consumer<String> listener = msg -> SwingUtilities.invokeLater(() -> {
+            chatModel.addElement(msg);
+            while (chatModel.getSize() > cap) chatModel.remove(0);
+            chatList.ensureIndexIsVisible(chatModel.getSize() - 1);
+        });
+        chatService.open(user, "Support: Hello! How can we help you today?", listener);
+        d.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                chatService.close(user, listener);
+            }
+        });
+        d.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
 
-        sendBtn.addActionListener(e -> {
+        ActionListener send = e -> {
             String txt = msgField.getText().trim();
             if (txt.isEmpty()) return;
-            chatModel.addElement("You: " + txt);
-            chatModel.addElement("Support: Thanks for the message — we'll look into it.");
+            chatService.send(user, txt);
             msgField.setText("");
-        });
+        };
+        sendBtn.addActionListener(send);
+        msgField.addActionListener(send);
 
         reportBtn.addActionListener(e -> {
             String pid = JOptionPane.showInputDialog(d, "Enter product ID to report as fake:", "Report Fake", JOptionPane.PLAIN_MESSAGE);
             if (pid != null && products.containsKey(pid.trim())) {
-                Product p = products.get(pid.trim());
-                p.flagged = true;
-                p.timeline.add(timestamp() + " - FLAGGED BY CUSTOMER");
-                ledger.add(timestamp() + " - FLAGGED - " + p.id + " reported by " + currentUserName);
+                Product p = record(ProductState.flagged(pid.trim(), currentUserName, System.currentTimeMillis()));
+                if (p == null) return;
+                columns.update(p);
                 rebuildLists();
                 JOptionPane.showMessageDialog(d, "Product " + pid + " flagged. Support will review.", "Reported", JOptionPane.INFORMATION_MESSAGE);
             } else {
@@ -389,9 +686,11 @@ public class SmartSupplyApp {
         JButton viewAssignedBtn = new JButton("My Deliveries");
         JButton genQrBtn = new JButton("Generate QR for Selected");
         JButton updateBtn = new JButton("Scan & Update Status");
+        JButton nearbyBtn = new JButton("In Transit Nearby");
         top.add(viewAssignedBtn);
         top.add(genQrBtn);
         top.add(updateBtn);
+        top.add(nearbyBtn);
         deliveryPanel.add(top, BorderLayout.NORTH);
 
         JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);
@@ -517,18 +816,37 @@ public class SmartSupplyApp {
             JOptionPane.showMessageDialog(frame, sb.toString(), "Assigned Deliveries", JOptionPane.INFORMATION_MESSAGE);
         });
 
+        nearbyBtn.addActionListener(e -> {
+            String sel = deliveryList.getSelectedValue();
+            if (sel == null) {
+                JOptionPane.showMessageDialog(frame, "Select a product to search around.", "No Selection", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            Product center = products.get(sel.split(" — ")[0].trim());
+            if (center == null) return;
+            int[] hits = new int[columns.size()];
+            int n = columns.scan(ProductColumns.IN_TRANSIT, false,
+                    center.lat - NEARBY_RADIUS, center.lat + NEARBY_RADIUS,
+                    center.lon - NEARBY_RADIUS, center.lon + NEARBY_RADIUS, hits);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                Product p = products.get(columns.idAt(hits[i]));
+                sb.append(p.id).append(" - ").append(p.name).append(String.format(" (%.5f, %.5f)", p.lat, p.lon)).append("\n");
+            }
+            if (n == 0) sb.append("No products in transit near ").append(center.id);
+            JOptionPane.showMessageDialog(frame, sb.toString(), "In Transit Nearby", JOptionPane.INFORMATION_MESSAGE);
+        });
+
         return deliveryPanel;
     }
 
     private void performDeliveryUpdate(Product p, String status, String actor) {
-        String t = timestamp() + " - " + status.toUpperCase() + " - " + p.id + " by " + actor;
-        p.status = status;
-        p.timeline.add(t);
-        ledger.add(t);
+        // The simulated move is part of the event so followers end up at the same position
         double dx = (Math.random() - 0.5) * 0.0015;
         double dy = (Math.random() - 0.5) * 0.0015;
-        p.lat += dx;
-        p.lon += dy;
+        if (record(ProductState.statusChanged(p.id, status, actor, p.lat + dx, p.lon + dy, System.currentTimeMillis())) != null) {
+            columns.update(p);
+        }
     }
 
     private void showLedgerDialog() {
@@ -536,6 +854,7 @@ public class SmartSupplyApp {
         d.setSize(600, 400);
         ledgerArea.setEditable(false);
         StringBuilder sb = new StringBuilder();
+        if (shipper != null) sb.append(shipper.describe()).append("\n\n");
         for (String s : ledger) sb.append(s).append("\n");
         ledgerArea.setText(sb.toString());
         JScrollPane sp = new JScrollPane(ledgerArea);
@@ -547,15 +866,12 @@ public class SmartSupplyApp {
         d.setVisible(true);
     }
 
-    private String timestamp() {
-        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+    private static String timestamp(long time) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(time));
     }
 
     private Product findProductByQr(String qr) {
-        for (Product p : products.values()) {
-            if (p.generateQrString().equals(qr)) return p;
-        }
-        return null;
+        return state.findByQr(qr);
     }
 
     private BufferedImage generateQrImage(String text, int w, int h) {
@@ -622,6 +938,1048 @@ public class SmartSupplyApp {
         }
     }
 
+    /**
+     * Structure-of-arrays copy of the fields that analytics and the map read most
+     * (position, status, flag). Each product gets a dense slot on registration and
+     * every mutation of those fields must be mirrored with {@link #update(Product)}.
+     */
+    private static class ProductColumns {
+        static final byte REGISTERED = 0;
+        static final byte PICKED_UP = 1;
+        static final byte IN_TRANSIT = 2;
+        static final byte DELIVERED = 3;
+
+        private final Map<String, Integer> slotById = new HashMap<>();
+        private String[] ids = new String[16];
+        private double[] lat = new double[16];
+        private double[] lon = new double[16];
+        private byte[] status = new byte[16];
+        private byte[] flagged = new byte[16];
+        private int size = 0;
+
+        int add(Product p) {
+            Integer existing = slotById.get(p.id);
+            if (existing != null) {
+                update(p);
+                return existing;
+            }
+            if (size == ids.length) grow();
+            int slot = size++;
+            ids[slot] = p.id;
+            slotById.put(p.id, slot);
+            write(slot, p);
+            return slot;
+        }
+
+        void update(Product p) {
+            Integer slot = slotById.get(p.id);
+            if (slot != null) write(slot, p);
+        }
+
+        int size() {
+            return size;
+        }
+
+        String idAt(int slot) {
+            return ids[slot];
+        }
+
+        /**
+         * Collects the slots of every product with the given status inside the box into
+         * {@code out} (which must hold at least {@link #size()} entries) and returns how
+         * many were written. The loop body is branch-free so it stays allocation-free and
+         * friendly to the JIT's vectorizer.
+         */
+        int scan(byte wantedStatus, boolean flaggedOnly, double minLat, double maxLat,
+                 double minLon, double maxLon, int[] out) {
+            final double[] la = lat, lo = lon;
+            final byte[] st = status, fl = flagged;
+            final byte wantFlag = (byte) (flaggedOnly ? 1 : 0);
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                int hit = (st[i] == wantedStatus ? 1 : 0)
+                        & ((fl[i] | (wantFlag ^ 1)) & 1)
+                        & (la[i] >= minLat ? 1 : 0) & (la[i] <= maxLat ? 1 : 0)
+                        & (lo[i] >= minLon ? 1 : 0) & (lo[i] <= maxLon ? 1 : 0);
+                out[n] = i;
+                n += hit;
+            }
+            return n;
+        }
+
+        static byte statusCode(String s) {
+            if ("Picked Up".equals(s)) return PICKED_UP;
+            if ("In Transit".equals(s)) return IN_TRANSIT;
+            if ("Delivered".equals(s)) return DELIVERED;
+            return REGISTERED;
+        }
+
+        private void write(int slot, Product p) {
+            lat[slot] = p.lat;
+            lon[slot] = p.lon;
+            status[slot] = statusCode(p.status);
+            flagged[slot] = (byte) (p.flagged ? 1 : 0);
+        }
+
+        private void grow() {
+            int cap = ids.length * 2;
+            ids = Arrays.copyOf(ids, cap);
+            lat = Arrays.copyOf(lat, cap);
+            lon = Arrays.copyOf(lon, cap);
+            status = Arrays.copyOf(status, cap);
+            flagged = Arrays.copyOf(flagged, cap);
+        }
+    }
+
+    /** Produces the support side of a conversation; called off the EDT. */
+    interface AutoResponder {
+        String reply(String user, String message);
+    }
+
+    private static class CannedResponder implements AutoResponder {
+        @Override
+        public String reply(String user, String message) {
+            return "Thanks for the message — we'll look into it.";
+        }
+    }
+
+    /** Fixed-capacity message history; once full, the oldest message is overwritten. */
+    private static class ChatHistory {
+        private final String[] slots;
+        private int head = 0;
+        private int size = 0;
+
+        ChatHistory(int capacity) {
+            slots = new String[capacity];
+        }
+
+        void add(String msg) {
+            slots[(head + size) % slots.length] = msg;
+            if (size < slots.length) size++;
+            else head = (head + 1) % slots.length;
+        }
+
+        List<String> snapshot() {
+            List<String> out = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) out.add(slots[(head + i) % slots.length]);
+            return out;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    private static class Conversation {
+        final String user;
+        final ChatHistory history;
+        final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+        Conversation(String user, int cap) {
+            this.user = user;
+            this.history = new ChatHistory(cap);
+        }
+    }
+
+    /**
+     * Per-user support conversations. Every state change runs on a single dispatcher
+     * thread so conversations need no locking; the responder runs on its own pool so a
+     * slow reply never holds up delivery. Each conversation is persisted to an
+     * append-only file and only the most recently used ones stay resident, which keeps
+     * memory bounded by residentCap * historyCap messages.
+     */
+    private static class ChatService {
+        private final Path dir;
+        private final int historyCap;
+        private final AutoResponder responder;
+        private final Map<String, Conversation> resident;
+        private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(daemon("chat-dispatch"));
+        private final ExecutorService responders = Executors.newFixedThreadPool(2, daemon("chat-responder"));
+
+        ChatService(Path dir, int historyCap, int residentCap, AutoResponder responder) {
+            this.dir = dir;
+            this.historyCap = historyCap;
+            this.responder = responder;
+            this.resident = new LinkedHashMap<String, Conversation>(16, 0.75f, true) {
+                // Evicts the least recently used conversation nobody has open; open ones
+                // stay resident, so the map only exceeds the cap while they outnumber it
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest) {
+                    if (size() <= residentCap) return false;
+                    for (Iterator<Conversation> it = values().iterator(); it.hasNext(); ) {
+                        // The last one is the conversation being added, not yet opened
+                        if (it.next().listeners.isEmpty() && it.hasNext()) {
+                            it.remove();
+                            break;
+                        }
+                    }
+                    return false;
+                }
+            };
+        }
+
+        int historyCap() {
+            return historyCap;
+        }
+
+        /** Replays the user's history to the listener, then subscribes it to new messages. */
+        void open(String user, String greeting, Consumer<String> listener) {
+            dispatcher.execute(() -> {
+                Conversation c = conversation(user);
+                if (c.history.isEmpty()) append(c, greeting);
+                for (String msg : c.history.snapshot()) listener.accept(msg);
+                c.listeners.add(listener);
+            });
+        }
+
+        void close(String user, Consumer<String> listener) {
+            dispatcher.execute(() -> conversation(user).listeners.remove(listener));
+        }
+
+        void send(String user, String text) {
+            dispatcher.execute(() -> {
+                append(conversation(user), "You: " + text);
+                responders.execute(() -> {
+                    String reply;
+                    try {
+                        reply = responder.reply(user, text);
+                    } catch (RuntimeException ex) {
+                        reply = "Sorry, support is unavailable right now.";
+                    }
+                    String msg = "Support: " + reply;
+                    dispatcher.execute(() -> append(conversation(user), msg));
+                });
+            });
+        }
+
+        private Conversation conversation(String user) {
+            Conversation c = resident.get(user);
+            if (c == null) {
+                c = new Conversation(user, historyCap);
+                load(c);
+                resident.put(user, c);
+            }
+            return c;
+        }
+
+        private void append(Conversation c, String msg) {
+            c.history.add(msg);
+            try {
+                Files.createDirectories(dir);
+                Files.write(fileFor(c.user), (msg + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException ex) {
+                // History stays in memory; persistence is best effort
+            }
+            for (Consumer<String> l : c.listeners) l.accept(msg);
+        }
+
+        // Reads the whole log; the ring buffer keeps only the last historyCap lines
+        private void load(Conversation c) {
+            Path f = fileFor(c.user);
+            if (!Files.exists(f)) return;
+            try (BufferedReader r = Files.newBufferedReader(f, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = r.readLine()) != null) c.history.add(line);
+            } catch (IOException ex) {
+                // Start with an empty history
+            }
+        }
+
+        // Letters, digits, '_' and '-' are kept and every other character becomes %XX per
+        // UTF-8 byte (as in a URL, '%' included), so different users never share a file
+        private Path fileFor(String user) {
+            StringBuilder name = new StringBuilder();
+            for (byte b : user.getBytes(StandardCharsets.UTF_8)) {
+                char c = (char) (b & 0xFF);
+                if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-') {
+                    name.append(c);
+                } else {
+                    name.append(String.format("%%%02X", b & 0xFF));
+                }
+            }
+            return dir.resolve(name + ".log");
+        }
+
+        private static ThreadFactory daemon(String name) {
+            return r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            };
+        }
+    }
+
+    /**
+     * Products and the human-readable ledger, rebuilt by applying ledger events in
+     * order. The app applies each event as it records it; a follower applies the ones
+     * it receives, so both end up with the same products. Events are tab-separated:
+     * <pre>
+     *   R time id name batch manufacturer distributor retailer delivery lat lon
+     *   S time id status actor lat lon
+     *   F time id user
+     * </pre>
+     */
+    private static class ProductState {
+        final Map<String, Product> products = new LinkedHashMap<>();
+        final List<String> ledger = new ArrayList<>();
+        // QR strings never change once a product is registered, so they can be indexed
+        private final Map<String, Product> byQr = new HashMap<>();
+
+        static String registered(Product p, long time) {
+            return event("R", time, p.id, p.name, p.batchNo, p.manufacturer, p.distributor, p.retailer,
+                    p.assignedDelivery, Double.toString(p.lat), Double.toString(p.lon));
+        }
+
+        static String statusChanged(String id, String status, String actor, double lat, double lon, long time) {
+            return event("S", time, id, status, actor, Double.toString(lat), Double.toString(lon));
+        }
+
+        static String flagged(String id, String user, long time) {
+            return event("F", time, id, user);
+        }
+
+        private static String event(String type, long time, String... fields) {
+            StringBuilder sb = new StringBuilder(type).append('\t').append(time);
+            for (String f : fields) sb.append('\t').append(f == null ? "" : f.replaceAll("[\t\n]", " "));
+            return sb.toString();
+        }
+
+        /** Applies one event; returns the product it changed, or null if there is none. */
+        Product apply(String event) {
+            String[] f = event.split("\t", -1);
+            String ts = timestamp(Long.parseLong(f[1]));
+            switch (f[0]) {
+                case "R": {
+                    Product p = new Product(f[2], f[3], f[5], f[6], f[7], f[8], Double.parseDouble(f[9]), Double.parseDouble(f[10]));
+                    p.batchNo = f[4];
+                    p.timeline.set(0, ts + " - CREATED - " + p.id);
+                    Product old = products.put(p.id, p);
+                    if (old != null) byQr.remove(old.generateQrString());
+                    byQr.put(p.generateQrString(), p);
+                    ledger.add(ts + " - REGISTERED - " + p.id + " by " + p.manufacturer);
+                    return p;
+                }
+                case "S": {
+                    Product p = products.get(f[2]);
+                    if (p == null) return null;
+                    String line = ts + " - " + f[3].toUpperCase() + " - " + p.id + " by " + f[4];
+                    p.status = f[3];
+                    p.timeline.add(line);
+                    ledger.add(line);
+                    p.lat = Double.parseDouble(f[5]);
+                    p.lon = Double.parseDouble(f[6]);
+                    return p;
+                }
+                case "F": {
+                    Product p = products.get(f[2]);
+                    if (p == null) return null;
+                    p.flagged = true;
+                    p.timeline.add(ts + " - FLAGGED BY CUSTOMER");
+                    ledger.add(ts + " - FLAGGED - " + p.id + " reported by " + f[3]);
+                    return p;
+                }
+                default:
+                    return null;
+            }
+        }
+
+        Product findByQr(String qr) {
+            return byQr.get(qr);
+        }
+    }
+
+    /**
+     * The ledger as an append-only log split into segment files named by the byte
+     * offset they start at, so any offset maps to one file and a position in it. Each
+     * record is: length (4 bytes), CRC32 of the event (4), the event in UTF-8. On open
+     * a torn record at the end of the last segment is cut off. Appends wake up readers
+     * waiting in {@link #awaitBeyond}.
+     */
+    private static class LedgerLog {
+        static final long SEGMENT_BYTES = 4L << 20;
+
+        private final Path dir;
+        private final boolean sync;
+        private final TreeMap<Long, Path> segments = new TreeMap<>();
+        private FileChannel active;
+        private long activeBase;
+        private long end;
+
+        LedgerLog(Path dir, boolean sync) throws IOException {
+            this.dir = dir;
+            this.sync = sync;
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "ledger-*.seg")) {
+                for (Path f : files) {
+                    String name = f.getFileName().toString();
+                    segments.put(Long.parseLong(name.substring(7, name.length() - 4)), f);
+                }
+            }
+            if (segments.isEmpty()) {
+                openSegment(0);
+                return;
+            }
+            activeBase = segments.lastKey();
+            Path last = segments.lastEntry().getValue();
+            long good = forEachRecord(ByteBuffer.wrap(Files.readAllBytes(last)), null);
+            active = FileChannel.open(last, StandardOpenOption.WRITE);
+            active.truncate(good);
+            active.position(good);
+            end = activeBase + good;
+        }
+
+        synchronized long append(String event) throws IOException {
+            byte[] body = event.getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            ByteBuffer rec = ByteBuffer.allocate(8 + body.length);
+            rec.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+            return write(rec);
+        }
+
+        /** Appends records exactly as framed by another log, as a follower does. */
+        synchronized long appendRecords(ByteBuffer records) throws IOException {
+            return write(records);
+        }
+
+        synchronized long end() {
+            return end;
+        }
+
+        /** Waits up to millis for the log to grow past pos; returns the end either way. */
+        synchronized long awaitBeyond(long pos, long millis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            while (end <= pos) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) break;
+                wait(left);
+            }
+            return end;
+        }
+
+        void replay(Consumer<String> apply) throws IOException {
+            List<Path> files;
+            synchronized (this) {
+                files = new ArrayList<>(segments.values());
+            }
+            for (Path f : files) forEachRecord(ByteBuffer.wrap(Files.readAllBytes(f)), apply);
+        }
+
+        synchronized void sync() throws IOException {
+            active.force(false);
+        }
+
+        synchronized void close() throws IOException {
+            active.close();
+        }
+
+        /** Reads records starting at pos into buf, whole records only; returns their length. */
+        int read(long pos, ByteBuffer buf) throws IOException {
+            Map.Entry<Long, Path> seg;
+            long limit;
+            synchronized (this) {
+                seg = segments.floorEntry(pos);
+                Long next = segments.higherKey(pos);
+                limit = next != null ? next : end;
+            }
+            if (seg == null || pos >= limit) return 0;
+            buf.clear();
+            if (buf.remaining() > limit - pos) buf.limit((int) (limit - pos));
+            try (FileChannel ch = FileChannel.open(seg.getValue(), StandardOpenOption.READ)) {
+                ch.read(buf, pos - seg.getKey());
+            }
+            buf.flip();
+            return (int) forEachRecord(buf.duplicate(), null);
+        }
+
+        /** True if pos is the end of the log or where one of its records starts. */
+        boolean startsRecord(long pos) throws IOException {
+            Map.Entry<Long, Path> seg;
+            synchronized (this) {
+                if (pos == end) return true;
+                if (pos < 0 || pos > end) return false;
+                seg = segments.floorEntry(pos);
+            }
+            if (seg == null) return false;
+            // Walks the records from the start of the segment up to pos
+            ByteBuffer buf = ByteBuffer.allocate((int) (pos - seg.getKey()));
+            try (FileChannel ch = FileChannel.open(seg.getValue(), StandardOpenOption.READ)) {
+                while (buf.hasRemaining() && ch.read(buf, buf.position()) > 0) { }
+            }
+            buf.flip();
+            return forEachRecord(buf, null) == pos - seg.getKey();
+        }
+
+        /**
+         * Walks the whole, intact records at the front of buf, handing each event to
+         * apply if it is not null; returns the length of those records.
+         */
+        static long forEachRecord(ByteBuffer buf, Consumer<String> apply) {
+            CRC32 crc = new CRC32();
+            int start = buf.position();
+            while (buf.remaining() >= 8) {
+                int at = buf.position();
+                int len = buf.getInt();
+                int sum = buf.getInt();
+                if (len < 0 || len > buf.remaining()) {
+                    buf.position(at);
+                    break;
+                }
+                crc.reset();
+                crc.update(buf.array(), buf.arrayOffset() + buf.position(), len);
+                if ((int) crc.getValue() != sum) {
+                    buf.position(at);
+                    break;
+                }
+                if (apply != null) {
+                    apply.accept(new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8));
+                }
+                buf.position(buf.position() + len);
+            }
+            return buf.position() - start;
+        }
+
+        private long write(ByteBuffer rec) throws IOException {
+            if (end - activeBase >= SEGMENT_BYTES) {
+                active.close();
+                openSegment(end);
+            }
+            while (rec.hasRemaining()) end += active.write(rec);
+            if (sync) active.force(false);
+            notifyAll();
+            return end;
+        }
+
+        private void openSegment(long base) throws IOException {
+            Path f = dir.resolve(String.format("ledger-%020d.seg", base));
+            active = FileChannel.open(f, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            activeBase = base;
+            end = base;
+            segments.put(base, f);
+        }
+    }
+
+    /**
+     * Serves the ledger to followers. A follower connects and sends the offset it has
+     * the ledger up to, which must be the end of this ledger or the start of one of its
+     * records (a follower of some other ledger is sent offset -1 and dropped); from there
+     * it gets batches of whole records, each framed as offset, leader end, length, records. Batches are sent as fast as the socket takes
+     * them without waiting for acknowledgements (the follower sends the offset it has
+     * applied after each batch, read on a separate thread), and an idle follower gets an
+     * empty batch every second. Shipping only reads the segment files, so recording an
+     * event never waits for a follower.
+     */
+    private static class LedgerShipper {
+        static final int BATCH_BYTES = 64 * 1024;
+        static final long HEARTBEAT_MILLIS = 1000;
+
+        private final LedgerLog log;
+        private final ServerSocket server;
+        private final Map<String, Follower> followers = new ConcurrentHashMap<>();
+
+        private static class Follower {
+            volatile long sent;
+            volatile long acked;
+            volatile long ackedAt = System.currentTimeMillis();
+        }
+
+        LedgerShipper(LedgerLog log, int port) throws IOException {
+            this.log = log;
+            this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        }
+
+        void start() {
+            daemon("ledger-accept", () -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket s = server.accept();
+                        daemon("ledger-ship " + s.getRemoteSocketAddress(), () -> ship(s));
+                    } catch (IOException e) {
+                        // Closed, or a connection that failed before it started
+                    }
+                }
+            });
+        }
+
+        /** One line per follower: what it has acknowledged and how far behind that is. */
+        String describe() {
+            long end = log.end();
+            StringBuilder sb = new StringBuilder("Replication: ").append(followers.size()).append(" follower(s), ledger at ").append(end);
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Follower> e : followers.entrySet()) {
+                Follower f = e.getValue();
+                sb.append(String.format("%n  %s: applied %d, lag %d bytes, in flight %d bytes, last ack %d ms ago",
+                        e.getKey(), f.acked, end - f.acked, f.sent - f.acked, now - f.ackedAt));
+            }
+            return sb.toString();
+        }
+
+        /** True once every connected follower has applied the whole ledger. */
+        boolean caughtUp() {
+            long end = log.end();
+            for (Follower f : followers.values()) {
+                if (f.acked < end) return false;
+            }
+            return true;
+        }
+
+        int followerCount() {
+            return followers.size();
+        }
+
+        private void ship(Socket s) {
+            String name = String.valueOf(s.getRemoteSocketAddress());
+            Follower f = new Follower();
+            try (Socket socket = s) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES + 32));
+                long pos = in.readLong();
+                if (!log.startsRecord(pos)) {
+                    // The follower has a ledger this one does not
+                    out.writeLong(-1);
+                    out.flush();
+                    return;
+                }
+                f.sent = f.acked = pos;
+                followers.put(name, f);
+                daemon("ledger-acks " + name, () -> {
+                    try {
+                        while (true) {
+                            f.acked = in.readLong();
+                            f.ackedAt = System.currentTimeMillis();
+                        }
+                    } catch (IOException e) {
+                        // The shipping side notices the closed socket too
+                    }
+                });
+                ByteBuffer buf = ByteBuffer.allocate(BATCH_BYTES);
+                while (true) {
+                    long end = log.awaitBeyond(pos, HEARTBEAT_MILLIS);
+                    int n = pos < end ? log.read(pos, buf) : 0;
+                    if (n == 0 && pos < end) {
+                        // A record bigger than the buffer gets a buffer of its size; anything
+                        // else is a damaged record, which no buffer would get past
+                        int len = buf.limit() >= 4 ? buf.getInt(0) : -1;
+                        if (buf.limit() < buf.capacity() || len < 0 || 8L + len > end - pos) return;
+                        buf = ByteBuffer.allocate(8 + len);
+                        continue;
+                    }
+                    out.writeLong(pos);
+                    out.writeLong(end);
+                    out.writeInt(n);
+                    out.write(buf.array(), 0, n);
+                    out.flush();
+                    pos += n;
+                    f.sent = pos;
+                }
+            } catch (IOException e) {
+                // Follower gone; it resumes from its own offset when it reconnects
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                followers.remove(name);
+            }
+        }
+
+        private static void daemon(String name, Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * A read-only copy of the products kept up to date from a leader's ledger. Records
+     * are appended to the follower's own log before they are applied, so after a
+     * restart it replays that and resumes replication from where it stopped. Product
+     * lookups are served over HTTP on the loopback interface:
+     * <pre>
+     *   GET /qr/&lt;code&gt;  the product details for a scanned QR string, 404 if unknown
+     *   GET /lag        replication position and lag
+     * </pre>
+     */
+    private static class LedgerFollower {
+        static final int DEFAULT_HTTP_PORT = 5181;
+        static final long RETRY_MILLIS = 1000;
+
+        private final LedgerLog log;
+        private final int leaderPort;
+        private final ProductState state = new ProductState();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile boolean connected;
+        private volatile long leaderEnd;
+        private volatile long lastEventTime;
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong events = new AtomicLong();
+
+        LedgerFollower(Path dir, int leaderPort) throws IOException {
+            this.log = new LedgerLog(dir, false);
+            this.leaderPort = leaderPort;
+            log.replay(state::apply);
+            leaderEnd = log.end();
+        }
+
+        void start(int httpPort) throws IOException {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 256);
+            http.createContext("/qr/", exchange -> {
+                String qr = exchange.getRequestURI().getPath().substring("/qr/".length());
+                String details;
+                lock.readLock().lock();
+                try {
+                    Product p = state.findByQr(qr);
+                    details = p == null ? null : renderProductDetails(p);
+                } finally {
+                    lock.readLock().unlock();
+                }
+                reply(exchange, details == null ? 404 : 200, details == null ? "QR not recognized\n" : details);
+            });
+            http.createContext("/lag", exchange -> reply(exchange, 200, lag()));
+            http.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2));
+            http.start();
+            System.out.println("Following the ledger on port " + leaderPort + ", serving lookups on http://localhost:" + httpPort + "/qr/");
+            while (true) {
+                try {
+                    follow();
+                } catch (IOException e) {
+                    // Leader not up, or gone; try again shortly
+                } catch (IllegalStateException e) {
+                    connected = false;
+                    System.out.println("Stopped following: " + e.getMessage());
+                    return;
+                }
+                connected = false;
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        String lag() {
+            long applied = log.end();
+            long behind = applied < leaderEnd && lastEventTime != 0 ? System.currentTimeMillis() - lastEventTime : 0;
+            return String.format("connected %s%napplied %d%nleader end %d%nlag bytes %d%nbehind ms %d%nbatches %d%nevents %d%n",
+                    connected, applied, leaderEnd, Math.max(0, leaderEnd - applied), behind, batches.get(), events.get());
+        }
+
+        private void follow() throws IOException {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), leaderPort)) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 17));
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeLong(log.end());
+                connected = true;
+                byte[] buf = new byte[LedgerShipper.BATCH_BYTES];
+                while (true) {
+                    long pos = in.readLong();
+                    if (pos < 0) {
+                        throw new IllegalStateException("the leader has no record at " + log.end() + "; this replica is of another ledger");
+                    }
+                    leaderEnd = in.readLong();
+                    int n = in.readInt();
+                    if (buf.length < n) buf = new byte[n];
+                    in.readFully(buf, 0, n);
+                    if (n > 0) {
+                        if (pos != log.end()) throw new IOException("Batch at " + pos + " does not follow " + log.end());
+                        ByteBuffer records = ByteBuffer.wrap(buf, 0, n);
+                        log.appendRecords(records.duplicate());
+                        lock.writeLock().lock();
+                        try {
+                            LedgerLog.forEachRecord(records, e -> {
+                                state.apply(e);
+                                events.incrementAndGet();
+                                lastEventTime = Long.parseLong(e.split("\t", 3)[1]);
+                            });
+                        } finally {
+                            lock.writeLock().unlock();
+                        }
+                        batches.incrementAndGet();
+                    }
+                    // Heartbeats are acknowledged too, so the leader sees an idle follower is alive
+                    out.writeLong(log.end());
+                }
+            }
+        }
+
+        private static void reply(HttpExchange exchange, int status, String text) throws IOException {
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    /**
+     * Products and their ledgers partitioned by id across shards under one directory
+     * (shard-0, shard-1, ...). Each shard has its own product state, ledger log and
+     * lock, so updates to products on different shards run in parallel. Shards are
+     * picked by jump consistent hashing of the id, which moves only about 1/(N+1) of
+     * the products when growing from N to N+1 shards. Queries over every product run
+     * on all shards at once and their results are merged (scatter-gather). The shard
+     * count is kept in the directory; changing it goes through {@link #rebalance}.
+     */
+    private static class ShardedRegistry {
+        private static final String COUNT_FILE = "shards";
+
+        private final Shard[] shards;
+        private final ExecutorService pool;
+
+        private static class Shard {
+            final ProductState state = new ProductState();
+            final LedgerLog log;
+
+            Shard(Path dir, boolean sync) throws IOException {
+                log = new LedgerLog(dir, sync);
+                log.replay(state::apply);
+            }
+        }
+
+        ShardedRegistry(Path dir, int count, boolean sync) throws IOException {
+            if (count < 1) throw new IllegalArgumentException("a registry needs at least one shard, not " + count);
+            finishRebalance(dir);
+            Files.createDirectories(dir);
+            Path countFile = dir.resolve(COUNT_FILE);
+            if (Files.exists(countFile)) {
+                int existing = Integer.parseInt(Files.readString(countFile).trim());
+                if (existing != count) {
+                    throw new IllegalStateException(dir + " has " + existing + " shards; rebalance it to use " + count);
+                }
+            } else {
+                Files.writeString(countFile, count + "\n");
+            }
+            shards = new Shard[count];
+            for (int i = 0; i < count; i++) shards[i] = new Shard(dir.resolve("shard-" + i), sync);
+            pool = Executors.newFixedThreadPool(count, r -> {
+                Thread t = new Thread(r, "registry-query");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        /** Opens an existing registry with the shard count recorded in it. */
+        static ShardedRegistry open(Path dir) throws IOException {
+            finishRebalance(dir);
+            Path countFile = dir.resolve(COUNT_FILE);
+            if (!Files.exists(countFile)) {
+                throw new IOException(dir + " is not a registry; create one with --registry-import");
+            }
+            return new ShardedRegistry(dir, Integer.parseInt(Files.readString(countFile).trim()), false);
+        }
+
+        /**
+         * Creates a registry of the given number of shards in dir from the events of the
+         * app's ledger, each routed to its product's shard. Returns the number of products.
+         * The app should be closed meanwhile so the ledger is not written under the import.
+         */
+        static int importLedger(Path ledgerDir, Path dir, int count) throws IOException {
+            if (!Files.isDirectory(ledgerDir)) throw new IOException("no ledger at " + ledgerDir);
+            finishRebalance(dir);
+            if (Files.exists(dir.resolve(COUNT_FILE))) throw new IOException(dir + " already holds a registry");
+            ShardedRegistry registry = new ShardedRegistry(dir, count, false);
+            LedgerLog ledger = new LedgerLog(ledgerDir, false);
+            IOException[] failure = new IOException[1];
+            try {
+                ledger.replay(e -> {
+                    try {
+                        if (failure[0] == null) registry.record(idOf(e), e);
+                    } catch (IOException ex) {
+                        failure[0] = ex;
+                    }
+                });
+                for (Shard s : registry.shards) s.log.sync();
+                if (failure[0] != null) throw failure[0];
+                return registry.size();
+            } finally {
+                ledger.close();
+                registry.close();
+            }
+        }
+
+        // Every event names its product in the third field
+        private static String idOf(String event) {
+            return event.split("\t", 4)[2];
+        }
+
+        /** Jump consistent hash (Lamping and Veach) of the id into [0, count). */
+        static int shardOf(String id, int count) {
+            long key = id.hashCode() * 0x9E3779B97F4A7C15L;
+            long b = -1, j = 0;
+            while (j < count) {
+                b = j;
+                key = key * 2862933555777941757L + 1;
+                j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+            }
+            return (int) b;
+        }
+
+        int shardCount() {
+            return shards.length;
+        }
+
+        Product register(Product p) throws IOException {
+            return record(p.id, ProductState.registered(p, System.currentTimeMillis()));
+        }
+
+        Product updateStatus(String id, String status, String actor, double lat, double lon) throws IOException {
+            return record(id, ProductState.statusChanged(id, status, actor, lat, lon, System.currentTimeMillis()));
+        }
+
+        Product flag(String id, String user) throws IOException {
+            return record(id, ProductState.flagged(id, user, System.currentTimeMillis()));
+        }
+
+        Product get(String id) {
+            Shard s = shards[shardOf(id, shards.length)];
+            synchronized (s) {
+                return s.state.products.get(id);
+            }
+        }
+
+        /** The driver view: every product assigned to the delivery person. */
+        List<Product> assignedTo(String driver) {
+            return gather(s -> {
+                List<Product> found = new ArrayList<>();
+                for (Product p : s.state.products.values()) {
+                    if (p.assignedDelivery != null && p.assignedDelivery.equalsIgnoreCase(driver)) found.add(p);
+                }
+                return found;
+            });
+        }
+
+        List<Product> flagged() {
+            return gather(s -> {
+                List<Product> found = new ArrayList<>();
+                for (Product p : s.state.products.values()) {
+                    if (p.flagged) found.add(p);
+                }
+                return found;
+            });
+        }
+
+        /** A QR string does not say which shard its product is on, so every shard is asked. */
+        Product findByQr(String qr) {
+            List<Product> found = gather(s -> {
+                Product p = s.state.findByQr(qr);
+                return p == null ? Collections.emptyList() : Collections.singletonList(p);
+            });
+            return found.isEmpty() ? null : found.get(0);
+        }
+
+        int size() {
+            int n = 0;
+            for (Shard s : shards) {
+                synchronized (s) {
+                    n += s.state.products.size();
+                }
+            }
+            return n;
+        }
+
+        void close() throws IOException {
+            pool.shutdown();
+            for (Shard s : shards) s.log.close();
+        }
+
+        // The event is in the shard's ledger before the product changes, as in the app
+        private Product record(String id, String event) throws IOException {
+            Shard s = shards[shardOf(id, shards.length)];
+            synchronized (s) {
+                s.log.append(event);
+                return s.state.apply(event);
+            }
+        }
+
+        // Runs the query on every shard in parallel, each under its shard's lock; the
+        // merged results are ordered by product id
+        private List<Product> gather(Function<Shard, List<Product>> query) {
+            List<Future<List<Product>>> parts = new ArrayList<>(shards.length);
+            for (Shard s : shards) {
+                parts.add(pool.submit(() -> {
+                    synchronized (s) {
+                        return query.apply(s);
+                    }
+                }));
+            }
+            List<Product> merged = new ArrayList<>();
+            try {
+                for (Future<List<Product>> part : parts) merged.addAll(part.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while querying shards", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Shard query failed", e.getCause());
+            }
+            merged.sort(Comparator.comparing(p -> p.id));
+            return merged;
+        }
+
+        /**
+         * Offline rebalancing: rewrites the registry in dir to the given number of shards
+         * by routing every event of every shard's ledger to its product's new shard (a
+         * product's events stay in order, as they all come from one old shard). The new
+         * registry is built beside dir in dir.rebalance and its shard count written last;
+         * dir is then renamed to dir.before-rebalance-&lt;time&gt; and the new one renamed
+         * into its place. Returns how many products changed shard. The registry must not
+         * be open meanwhile.
+         */
+        static int rebalance(Path dir, int to) throws IOException {
+            if (to < 1) throw new IllegalArgumentException("a registry needs at least one shard, not " + to);
+            finishRebalance(dir);
+            int from = Integer.parseInt(Files.readString(dir.resolve(COUNT_FILE)).trim());
+            // dir is still whole here, so a leftover new layout is an unfinished build
+            Path next = pending(dir);
+            if (Files.exists(next)) deleteTree(next);
+            LedgerLog[] target = new LedgerLog[to];
+            for (int i = 0; i < to; i++) target[i] = new LedgerLog(next.resolve("shard-" + i), false);
+            Set<String> moved = new HashSet<>();
+            IOException[] failure = new IOException[1];
+            for (int i = 0; i < from; i++) {
+                int old = i;
+                LedgerLog source = new LedgerLog(dir.resolve("shard-" + i), false);
+                source.replay(e -> {
+                    String id = idOf(e);
+                    int shard = shardOf(id, to);
+                    if (shard != old) moved.add(id);
+                    try {
+                        if (failure[0] == null) target[shard].append(e);
+                    } catch (IOException ex) {
+                        failure[0] = ex;
+                    }
+                });
+                source.close();
+            }
+            for (LedgerLog log : target) {
+                log.sync();
+                log.close();
+            }
+            if (failure[0] != null) throw failure[0];
+            Files.writeString(next.resolve(COUNT_FILE), to + "\n", StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+            Path backup = dir.resolveSibling(dir.getFileName() + ".before-rebalance-" + System.currentTimeMillis());
+            Files.move(dir, backup, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(next, dir, StandardCopyOption.ATOMIC_MOVE);
+            return moved.size();
+        }
+
+        private static Path pending(Path dir) {
+            return dir.resolveSibling(dir.getFileName() + ".rebalance");
+        }
+
+        // A rebalance stopped between its two renames leaves no dir but a finished new
+        // layout (one with its shard count) beside it; that layout is moved into place
+        private static void finishRebalance(Path dir) throws IOException {
+            Path next = pending(dir);
+            if (!Files.exists(dir) && Files.exists(next.resolve(COUNT_FILE))) {
+                Files.move(next, dir, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+
     private static class MapPanel extends JPanel {
         private double markerLat = 0;
         private double markerLon = 0;
@@ -1,76 +1,951 @@
 // A simple program to demonstrate
 // Tic-Tac-Toe Game.
 import java.util.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
-public class game{
-	
-	static String[] board;
-	static String turn;
-	
-	
-	// CheckWinner method will
-	// decide the combination
-	// of three box given below.
-	static String checkWinner()
+// The board as two 9-bit masks, one per player.
+// Bit n stands for slot n + 1:
+/* |---|---|---|
+	| 0 | 1 | 2 |
+	|-----------|
+	| 3 | 4 | 5 |
+	|-----------|
+	| 6 | 7 | 8 |
+	|---|---|---|*/
+// Everything is done with int masks and static methods,
+// so simulated games do not allocate.
+final class Bitboard {
+
+	static final int FULL = 0x1ff;
+
+	// The eight lines: three rows, three columns
+	// and the two diagonals.
+	static final int[] WIN_MASKS = {
+		0x007, 0x038, 0x1c0,
+		0x049, 0x092, 0x124,
+		0x111, 0x054
+	};
+
+	// WON[mask] tells whether the slots in mask
+	// contain a complete line.
+	private static final boolean[] WON = new boolean[FULL + 1];
+
+	static {
+		for (int mask = 0; mask <= FULL; mask++) {
+			for (int line : WIN_MASKS) {
+				if ((mask & line) == line) {
+					WON[mask] = true;
+					break;
+				}
+			}
+		}
+	}
+
+	private Bitboard()
 	{
-		for (int a = 0; a < 8; a++) {
-			String line = null;
+	}
 
-			switch (a) {
-			case 0:
-				line = board[0] + board[1] + board[2];
-				break;
-			case 1:
-				line = board[3] + board[4] + board[5];
-				break;
-			case 2:
-				line = board[6] + board[7] + board[8];
-				break;
-			case 3:
-				line = board[0] + board[3] + board[6];
-				break;
-			case 4:
-				line = board[1] + board[4] + board[7];
-				break;
-			case 5:
-				line = board[2] + board[5] + board[8];
-				break;
-			case 6:
-				line = board[0] + board[4] + board[8];
-				break;
-			case 7:
-				line = board[2] + board[4] + board[6];
+	static boolean won(int mask)
+	{
+		return WON[mask];
+	}
+
+	// Slots not taken by either player.
+	static int free(int x, int o)
+	{
+		return ~(x | o) & FULL;
+	}
+
+	static boolean full(int x, int o)
+	{
+		return (x | o) == FULL;
+	}
+
+	// X always moves first, so it is X's turn
+	// whenever both have placed the same number of marks.
+	static boolean xToMove(int x, int o)
+	{
+		return Integer.bitCount(x) == Integer.bitCount(o);
+	}
+
+	// "X", "O", "draw" or null while the game goes on.
+	static String result(int x, int o)
+	{
+		if (won(x)) {
+			return "X";
+		}
+		if (won(o)) {
+			return "O";
+		}
+		return full(x, o) ? "draw" : null;
+	}
+}
+
+// Computer opponent playing perfectly: negamax with
+// alpha-beta pruning over the bitboard. Positions are
+// remembered in a transposition table indexed directly
+// by the two masks (2^18 slots), so every position is
+// searched at most once and later answers are instant.
+// Not thread-safe; use one instance per thread.
+final class Minimax {
+
+	// Center first, then corners, then edges.
+	private static final int[] ORDER = {4, 0, 2, 6, 8, 1, 3, 5, 7};
+
+	private static final int EXACT = 0;
+	private static final int LOWER = 1;
+	private static final int UPPER = 2;
+
+	// Packed entry: bit 0 valid, bits 1-2 bound,
+	// bits 3-7 score + 16, bits 8-11 best slot.
+	private final int[] table = new int[1 << 18];
+
+	private long nodes;
+
+	// Best slot (0-8) for the player to move.
+	int bestMove(int x, int o)
+	{
+		boolean xTurn = Bitboard.xToMove(x, o);
+		int me = xTurn ? x : o;
+		int opp = xTurn ? o : x;
+		search(me, opp, -100, 100);
+		int entry = table[me | opp << 9];
+		return (entry >>> 8) & 0xf;
+	}
+
+	// Score for the player to move: positive wins,
+	// negative loses, 0 draws. A quicker win scores higher.
+	int score(int x, int o)
+	{
+		boolean xTurn = Bitboard.xToMove(x, o);
+		return xTurn ? search(x, o, -100, 100) : search(o, x, -100, 100);
+	}
+
+	long nodes()
+	{
+		return nodes;
+	}
+
+	private int search(int me, int opp, int alpha, int beta)
+	{
+		nodes++;
+		int free = Bitboard.free(me, opp);
+		// The opponent has just completed a line.
+		if (Bitboard.won(opp)) {
+			return -(1 + Integer.bitCount(free));
+		}
+		if (free == 0) {
+			return 0;
+		}
+
+		int key = me | opp << 9;
+		int entry = table[key];
+		int first = -1;
+		if (entry != 0) {
+			int score = ((entry >>> 3) & 0x1f) - 16;
+			int bound = (entry >>> 1) & 3;
+			first = (entry >>> 8) & 0xf;
+			if (bound == EXACT
+				|| (bound == LOWER && score >= beta)
+				|| (bound == UPPER && score <= alpha)) {
+				return score;
+			}
+		}
+
+		int start = alpha;
+		int best = -100;
+		int bestSlot = -1;
+		for (int i = -1; i < ORDER.length; i++) {
+			// The remembered best slot is tried before the rest.
+			int slot = i < 0 ? first : ORDER[i];
+			if (slot < 0 || (i >= 0 && slot == first)
+				|| (free & (1 << slot)) == 0) {
+				continue;
+			}
+			int score = -search(opp, me | (1 << slot), -beta, -alpha);
+			if (score > best) {
+				best = score;
+				bestSlot = slot;
+			}
+			if (best > alpha) {
+				alpha = best;
+			}
+			if (alpha >= beta) {
 				break;
 			}
-			//For X winner
-			if (line.equals("XXX")) {
-				return "X";
+		}
+
+		int bound = best <= start ? UPPER : best >= beta ? LOWER : EXACT;
+		table[key] = 1 | bound << 1 | (best + 16) << 3 | bestSlot << 8;
+		return best;
+	}
+}
+
+// Opening book and endgame table in one: the best move of
+// every reachable 3 x 3 position, so the computer never has
+// to search. The table is indexed by the board read as a
+// base-3 number (slot n counts 3^n for X, 2 * 3^n for O),
+// 3^9 bytes in all; each byte holds the best slot and the
+// outcome for the player to move, 0 for positions that never
+// occur or are already over. Only one position of each group
+// of eight rotations and reflections is solved; the others
+// get the same answer mapped back through the symmetry.
+// The table is written once to a file and memory mapped on
+// start, so a lookup is one array read and allocates nothing.
+final class MoveBook {
+
+	static final String FILE = "tictactoe.book";
+	private static final int MAGIC = 0x54545442;
+	private static final int VERSION = 1;
+	private static final int HEADER = 12;
+	private static final int POSITIONS = 19683;
+
+	static final int WIN = 1;
+	static final int DRAW = 2;
+	static final int LOSS = 3;
+
+	// PERM[s][cell]: where cell goes under symmetry s;
+	// MASKS[s][mask]: the same for a whole mask.
+	private static final int[][] PERM = new int[8][9];
+	private static final int[][] MASKS = new int[8][Bitboard.FULL + 1];
+	// TRITS[mask]: the sum of 3^n over the bits n of mask.
+	private static final int[] TRITS = new int[Bitboard.FULL + 1];
+
+	static {
+		for (int cell = 0; cell < 9; cell++) {
+			int r = cell / 3;
+			int c = cell % 3;
+			int[][] to = {
+				{r, c}, {c, 2 - r}, {2 - r, 2 - c}, {2 - c, r},
+				{r, 2 - c}, {2 - r, c}, {c, r}, {2 - c, 2 - r}
+			};
+			for (int s = 0; s < 8; s++) {
+				PERM[s][cell] = to[s][0] * 3 + to[s][1];
 			}
-			
-			// For O winner
-			else if (line.equals("OOO")) {
-				return "O";
+		}
+		for (int mask = 0; mask <= Bitboard.FULL; mask++) {
+			int power = 1;
+			for (int cell = 0; cell < 9; cell++) {
+				if ((mask & (1 << cell)) != 0) {
+					TRITS[mask] += power;
+					for (int s = 0; s < 8; s++) {
+						MASKS[s][mask] |= 1 << PERM[s][cell];
+					}
+				}
+				power *= 3;
 			}
 		}
-		
-		for (int a = 0; a < 9; a++) {
-			if (Arrays.asList(board).contains(
-					String.valueOf(a + 1))) {
-				break;
+	}
+
+	private static MoveBook shared;
+
+	private final ByteBuffer table;
+
+	private MoveBook(ByteBuffer table)
+	{
+		this.table = table;
+	}
+
+	// The book in FILE, generated first if the file is missing;
+	// loaded once per JVM.
+	static synchronized MoveBook shared() throws IOException
+	{
+		if (shared == null) {
+			Path file = Paths.get(FILE);
+			if (!Files.exists(file)) {
+				generate(file);
 			}
-			else if (a == 8) {
-				return "draw";
+			shared = open(file);
+		}
+		return shared;
+	}
+
+	static MoveBook open(Path file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() != HEADER + POSITIONS) {
+				throw new IOException(file + " is not a move book");
 			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+				throw new IOException(file + " is not a move book of version " + VERSION);
+			}
+			return new MoveBook(map);
 		}
+	}
 
-	// To enter the X Or O at the exact place on board.
-		System.out.println(
-			turn + "'s turn; enter a slot number to place "
-			+ turn + " in:");
+	static int index(int x, int o)
+	{
+		return TRITS[x] + 2 * TRITS[o];
+	}
+
+	// Best slot (0-8) for the player to move, or -1 if the
+	// position cannot occur or the game is over.
+	int move(int x, int o)
+	{
+		int entry = table.get(HEADER + index(x, o));
+		return entry == 0 ? -1 : entry & 0xf;
+	}
+
+	// WIN, DRAW or LOSS for the player to move with best
+	// play from both sides, 0 if there is nothing to play.
+	int outcome(int x, int o)
+	{
+		return (table.get(HEADER + index(x, o)) >> 4) & 3;
+	}
+
+	// Solving every reachable position and writing the table;
+	// returns how many positions had to be searched.
+	static int generate(Path file) throws IOException
+	{
+		byte[] entries = new byte[POSITIONS];
+		// Answers of the solved positions, by canonical key.
+		Map<Integer, Integer> solved = new HashMap<>();
+		Minimax minimax = new Minimax();
+		boolean[] seen = new boolean[1 << 18];
+		ArrayDeque<Integer> todo = new ArrayDeque<>();
+		todo.push(0);
+		seen[0] = true;
+		while (!todo.isEmpty()) {
+			int key = todo.pop();
+			int x = key & Bitboard.FULL;
+			int o = key >>> 9;
+			if (Bitboard.result(x, o) != null) {
+				continue;
+			}
+			// The symmetry giving the smallest key stands for all eight.
+			int sym = 0;
+			int canonical = Integer.MAX_VALUE;
+			for (int s = 0; s < 8; s++) {
+				int k = MASKS[s][x] | MASKS[s][o] << 9;
+				if (k < canonical) {
+					canonical = k;
+					sym = s;
+				}
+			}
+			Integer answer = solved.get(canonical);
+			if (answer == null) {
+				int cx = canonical & Bitboard.FULL;
+				int co = canonical >>> 9;
+				int slot = minimax.bestMove(cx, co);
+				int score = minimax.score(cx, co);
+				int outcome = score > 0 ? WIN : score < 0 ? LOSS : DRAW;
+				answer = slot | outcome << 4;
+				solved.put(canonical, answer);
+			}
+			int slot = answer & 0xf;
+			for (int cell = 0; cell < 9; cell++) {
+				if (PERM[sym][cell] == slot) {
+					entries[index(x, o)] = (byte) (cell | (answer & 0x30));
+					break;
+				}
+			}
+			boolean xTurn = Bitboard.xToMove(x, o);
+			for (int free = Bitboard.free(x, o); free != 0; free &= free - 1) {
+				int bit = Integer.lowestOneBit(free);
+				int next = xTurn ? (x | bit) | o << 9 : x | (o | bit) << 9;
+				if (!seen[next]) {
+					seen[next] = true;
+					todo.push(next);
+				}
+			}
+		}
+		ByteBuffer out = ByteBuffer.allocate(HEADER + POSITIONS);
+		out.putInt(MAGIC).putInt(VERSION).putInt(solved.size()).put(entries);
+		out.flip();
+		Path tmp = Paths.get(file + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+			channel.force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return solved.size();
+	}
+}
+
+// N x N board where K marks in a row win (3 x 3 with K = 3
+// is the classic game, 15 x 15 with K = 5 is gomoku).
+// After a move only the four lines through that cell are
+// walked, at most K - 1 cells each way, so a move costs
+// O(K) however large the board. The free cells are kept in
+// an array with each cell's position in it, so taking,
+// freeing and picking a free cell are all O(1).
+final class GridBoard {
+
+	static final byte EMPTY = 0;
+	static final byte X = 1;
+	static final byte O = 2;
+
+	// Row and column steps of the four directions:
+	// across, down and the two diagonals.
+	private static final int[][] DIRECTIONS = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+
+	private final int n;
+	private final int k;
+	private final byte[] cells;
+	private final int[] free;
+	private final int[] freeAt;
+	private int freeCount;
+	private final int[] moves;
+	private int moveCount;
+	private byte winner;
+
+	GridBoard(int n, int k)
+	{
+		if (n < 1 || k < 1 || k > n) {
+			throw new IllegalArgumentException(
+				"Need 1 <= K <= N, got N = " + n + ", K = " + k);
+		}
+		this.n = n;
+		this.k = k;
+		cells = new byte[n * n];
+		free = new int[n * n];
+		freeAt = new int[n * n];
+		moves = new int[n * n];
+		clear();
+	}
+
+	void clear()
+	{
+		Arrays.fill(cells, EMPTY);
+		for (int c = 0; c < cells.length; c++) {
+			free[c] = c;
+			freeAt[c] = c;
+		}
+		freeCount = cells.length;
+		moveCount = 0;
+		winner = EMPTY;
+	}
+
+	int size()
+	{
+		return n;
+	}
+
+	int k()
+	{
+		return k;
+	}
+
+	int cells()
+	{
+		return cells.length;
+	}
+
+	byte get(int cell)
+	{
+		return cells[cell];
+	}
+
+	boolean isFree(int cell)
+	{
+		return cell >= 0 && cell < cells.length && cells[cell] == EMPTY;
+	}
+
+	int freeCount()
+	{
+		return freeCount;
+	}
+
+	// The i-th free cell, 0 <= i < freeCount(), in no particular order.
+	int freeCell(int i)
+	{
+		return free[i];
+	}
+
+	int moveCount()
+	{
+		return moveCount;
+	}
+
+	int lastMove()
+	{
+		return moveCount == 0 ? -1 : moves[moveCount - 1];
+	}
+
+	// X always moves first.
+	byte toMove()
+	{
+		return (moveCount & 1) == 0 ? X : O;
+	}
+
+	// X, O, or EMPTY while nobody has K in a row.
+	byte winner()
+	{
+		return winner;
+	}
+
+	boolean over()
+	{
+		return winner != EMPTY || freeCount == 0;
+	}
+
+	// Placing the mark of the player to move on a free cell;
+	// returns true if the move wins.
+	boolean play(int cell)
+	{
+		byte p = toMove();
+		cells[cell] = p;
+		int last = free[--freeCount];
+		free[freeAt[cell]] = last;
+		freeAt[last] = freeAt[cell];
+		free[freeCount] = cell;
+		freeAt[cell] = freeCount;
+		moves[moveCount++] = cell;
+		if (wins(cell, p)) {
+			winner = p;
+			return true;
+		}
+		return false;
+	}
+
+	// Taking back the last move.
+	void undo()
+	{
+		int cell = moves[--moveCount];
+		cells[cell] = EMPTY;
+		// The cell is still stored just past the free cells.
+		freeCount++;
+		winner = EMPTY;
+	}
+
+	// Whether the mark just placed on cell completes K in a row.
+	boolean wins(int cell, byte p)
+	{
+		int row = cell / n;
+		int col = cell % n;
+		for (int[] d : DIRECTIONS) {
+			int run = 1 + count(row, col, d[0], d[1], p)
+				+ count(row, col, -d[0], -d[1], p);
+			if (run >= k) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Marks of p next to (row, col) in one direction, at most K - 1.
+	private int count(int row, int col, int dr, int dc, byte p)
+	{
+		int found = 0;
+		int r = row + dr;
+		int c = col + dc;
+		while (found < k - 1 && r >= 0 && r < n && c >= 0 && c < n
+				&& cells[r * n + c] == p) {
+			found++;
+			r += dr;
+			c += dc;
+		}
+		return found;
+	}
+
+	// The board as the two masks of Bitboard; 3 x 3 only.
+	int mask(byte p)
+	{
+		int mask = 0;
+		for (int c = 0; c < cells.length; c++) {
+			if (cells[c] == p) {
+				mask |= 1 << c;
+			}
+		}
+		return mask;
+	}
+}
+
+// A player for headless games. move() picks a free cell for
+// the player to move and must leave the board as it found it.
+interface Strategy {
+
+	int move(GridBoard board);
+
+	// "random", "minimax", "book" or "mcts" (optionally "mcts:<playouts>").
+	static Strategy named(String name)
+	{
+		if (name.equals("random")) {
+			return new RandomStrategy();
+		}
+		if (name.equals("minimax")) {
+			return new MinimaxStrategy();
+		}
+		if (name.equals("book")) {
+			return new BookStrategy();
+		}
+		if (name.equals("mcts")) {
+			return new MctsStrategy(MctsStrategy.PLAYOUTS);
+		}
+		if (name.startsWith("mcts:")) {
+			return new MctsStrategy(Integer.parseInt(name.substring(5)));
+		}
+		throw new IllegalArgumentException("Unknown strategy '" + name
+			+ "'; use random, minimax, book or mcts[:playouts]");
+	}
+}
+
+// Any free cell, uniformly.
+final class RandomStrategy implements Strategy {
+
+	public int move(GridBoard board)
+	{
+		return board.freeCell(
+			ThreadLocalRandom.current().nextInt(board.freeCount()));
+	}
+}
+
+// Perfect play read from the move book; 3 x 3 with 3 in a row only.
+final class BookStrategy implements Strategy {
+
+	private final MoveBook book;
+
+	BookStrategy()
+	{
+		try {
+			book = MoveBook.shared();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int move(GridBoard board)
+	{
+		if (board.size() != 3 || board.k() != 3) {
+			throw new IllegalArgumentException(
+				"book plays 3x3 with 3 in a row only");
+		}
+		return book.move(board.mask(GridBoard.X), board.mask(GridBoard.O));
+	}
+}
+
+// Perfect play through Minimax; 3 x 3 with 3 in a row only.
+final class MinimaxStrategy implements Strategy {
+
+	private final Minimax minimax = new Minimax();
+
+	public int move(GridBoard board)
+	{
+		if (board.size() != 3 || board.k() != 3) {
+			throw new IllegalArgumentException(
+				"minimax plays 3x3 with 3 in a row only");
+		}
+		return minimax.bestMove(board.mask(GridBoard.X),
+			board.mask(GridBoard.O));
+	}
+}
+
+// Monte Carlo tree search (UCT): every playout walks down the
+// tree by the UCB1 rule, adds one new node, finishes the game
+// with random moves and credits the result back up the path.
+// The most visited move is played. Works on any board size.
+final class MctsStrategy implements Strategy {
+
+	static final int PLAYOUTS = 1000;
+	private static final double EXPLORE = Math.sqrt(2);
+
+	private static final class Node {
+		final Node parent;
+		final int move;
+		// The player who made move.
+		final byte mover;
+		// Moves not expanded yet, taken from the end.
+		final int[] untried;
+		int untriedCount;
+		final List<Node> children = new ArrayList<>();
+		int visits;
+		// Wins of the player who made move, a draw counting half.
+		double score;
+
+		Node(Node parent, int move, GridBoard board)
+		{
+			this.parent = parent;
+			this.move = move;
+			mover = board.toMove() == GridBoard.X ? GridBoard.O : GridBoard.X;
+			untried = new int[board.over() ? 0 : board.freeCount()];
+			for (int i = 0; i < untried.length; i++) {
+				untried[i] = board.freeCell(i);
+			}
+			untriedCount = untried.length;
+		}
+
+		Node select()
+		{
+			double logVisits = Math.log(visits);
+			Node best = null;
+			double bestValue = Double.NEGATIVE_INFINITY;
+			for (Node child : children) {
+				double value = child.score / child.visits
+					+ EXPLORE * Math.sqrt(logVisits / child.visits);
+				if (value > bestValue) {
+					bestValue = value;
+					best = child;
+				}
+			}
+			return best;
+		}
+	}
+
+	private final int playouts;
+
+	MctsStrategy(int playouts)
+	{
+		this.playouts = playouts;
+	}
+
+	public int move(GridBoard board)
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Node root = new Node(null, -1, board);
+		int start = board.moveCount();
+		for (int p = 0; p < playouts; p++) {
+			Node node = root;
+			while (node.untriedCount == 0 && !node.children.isEmpty()) {
+				node = node.select();
+				board.play(node.move);
+			}
+			if (node.untriedCount > 0) {
+				int i = random.nextInt(node.untriedCount);
+				int move = node.untried[i];
+				node.untried[i] = node.untried[--node.untriedCount];
+				board.play(move);
+				Node child = new Node(node, move, board);
+				node.children.add(child);
+				node = child;
+			}
+			while (!board.over()) {
+				board.play(board.freeCell(random.nextInt(board.freeCount())));
+			}
+			byte winner = board.winner();
+			while (board.moveCount() > start) {
+				board.undo();
+			}
+			for (Node n = node; n != root; n = n.parent) {
+				n.visits++;
+				n.score += winner == n.mover ? 1 : winner == GridBoard.EMPTY ? 0.5 : 0;
+			}
+			root.visits++;
+		}
+		Node best = null;
+		for (Node child : root.children) {
+			if (best == null || child.visits > best.visits) {
+				best = child;
+			}
+		}
+		return best.move;
+	}
+}
+
+// Headless self-play: plays a number of games between two
+// strategies on all cores. The games are split into chunks
+// on a fork-join pool; each worker thread keeps its own board
+// and strategy instances, and the results are added up in
+// LongAdders so the workers never wait on each other.
+final class SelfPlay {
+
+	// Games played by one task without splitting further.
+	static final int CHUNK = 1024;
+
+	final LongAdder xWins = new LongAdder();
+	final LongAdder oWins = new LongAdder();
+	final LongAdder draws = new LongAdder();
+	final LongAdder moves = new LongAdder();
+
+	private final int n;
+	private final int k;
+	private final ThreadLocal<GridBoard> boards;
+	private final ThreadLocal<Strategy> xPlayer;
+	private final ThreadLocal<Strategy> oPlayer;
+
+	SelfPlay(int n, int k, String x, String o)
+	{
+		this.n = n;
+		this.k = k;
+		// Fail before starting if a name is wrong.
+		Strategy.named(x);
+		Strategy.named(o);
+		boards = ThreadLocal.withInitial(() -> new GridBoard(n, k));
+		xPlayer = ThreadLocal.withInitial(() -> Strategy.named(x));
+		oPlayer = ThreadLocal.withInitial(() -> Strategy.named(o));
+	}
+
+	// Plays the games with the given number of threads and
+	// returns the time taken in nanoseconds.
+	long run(long games, int threads)
+	{
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.nanoTime();
+		try {
+			pool.invoke(new Games(0, games));
+		}
+		finally {
+			pool.shutdown();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private final class Games extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long from;
+		private final long to;
+
+		Games(long from, long to)
+		{
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute()
+		{
+			if (to - from > CHUNK) {
+				long mid = (from + to) >>> 1;
+				invokeAll(new Games(from, mid), new Games(mid, to));
+				return;
+			}
+			GridBoard board = boards.get();
+			Strategy x = xPlayer.get();
+			Strategy o = oPlayer.get();
+			long xw = 0;
+			long ow = 0;
+			long played = 0;
+			for (long g = from; g < to; g++) {
+				board.clear();
+				while (!board.over()) {
+					Strategy s = board.toMove() == GridBoard.X ? x : o;
+					board.play(s.move(board));
+				}
+				if (board.winner() == GridBoard.X) {
+					xw++;
+				}
+				else if (board.winner() == GridBoard.O) {
+					ow++;
+				}
+				played += board.moveCount();
+			}
+			xWins.add(xw);
+			oWins.add(ow);
+			draws.add(to - from - xw - ow);
+			moves.add(played);
+		}
+	}
+
+	// "--simulate [games] [X strategy] [O strategy] [N] [K] [threads]"
+	static void main(String[] args)
+	{
+		long games = args.length > 1 ? Long.parseLong(args[1]) : 1_000_000;
+		String x = args.length > 2 ? args[2] : "minimax";
+		String o = args.length > 3 ? args[3] : "random";
+		int n = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+		int k = args.length > 5 ? Integer.parseInt(args[5]) : Math.min(n, 3);
+		int threads = args.length > 6 ? Integer.parseInt(args[6])
+			: Runtime.getRuntime().availableProcessors();
+
+		SelfPlay play = new SelfPlay(n, k, x, o);
+		double seconds = play.run(games, threads) / 1e9;
+		long xw = play.xWins.sum();
+		long ow = play.oWins.sum();
+		long dr = play.draws.sum();
+		System.out.printf(
+			"%d games of X=%s vs O=%s on %dx%d (%d in a row), %d threads, %.2f s: %.0f games/s%n",
+			games, x, o, n, n, k, threads, seconds, games / seconds);
+		System.out.printf(
+			"X won %d (%.1f%%), O won %d (%.1f%%), %d draws (%.1f%%), %.1f moves per game%n",
+			xw, 100.0 * xw / games, ow, 100.0 * ow / games,
+			dr, 100.0 * dr / games, (double) play.moves.sum() / games);
+	}
+}
+
+// One game in progress: its board, whose turn it is and how
+// it ended. The console game and every match hosted by the
+// game server each have their own, so any number of games
+// can run in one JVM.
+final class Match {
+
+	final int id;
+	final GridBoard board;
+
+	Match(int id, int n, int k)
+	{
+		this.id = id;
+		board = new GridBoard(n, k);
+	}
+
+	static String mark(byte p)
+	{
+		return p == GridBoard.X ? "X" : "O";
+	}
+
+	String turn()
+	{
+		return mark(board.toMove());
+	}
+
+	// "X", "O", "draw" or null while the game goes on.
+	String result()
+	{
+		if (board.winner() != GridBoard.EMPTY) {
+			return mark(board.winner());
+		}
+		return board.freeCount() == 0 ? "draw" : null;
+	}
+
+	// Placing player's mark on slot (0-based); returns why
+	// the move is refused, or null once it is played.
+	String play(byte player, int slot)
+	{
+		if (board.over()) {
+			return "Game is over";
+		}
+		if (player != board.toMove()) {
+			return "Not your turn";
+		}
+		if (slot < 0 || slot >= board.cells()) {
+			return "Invalid slot";
+		}
+		if (!board.isFree(slot)) {
+			return "Slot already taken";
+		}
+		board.play(slot);
 		return null;
 	}
-	
-	// To print out the board.
+
+	// What to show in a slot: the mark or the slot number.
+	String slot(int a)
+	{
+		String shown = board.isFree(a) ? String.valueOf(a + 1)
+			: mark(board.get(a));
+		int width = String.valueOf(board.cells()).length();
+		while (shown.length() < width) {
+			shown = " " + shown;
+		}
+		return shown;
+	}
+
+	// The board as printed for the players.
 	/* |---|---|---|
 	| 1 | 2 | 3 |
 	|-----------|
@@ -78,91 +953,737 @@ public class game{
 	|-----------|
 	| 7 | 8 | 9 |
 	|---|---|---|*/
-	
-	static void printBoard()
-	{
-		System.out.println("|---|---|---|");
-		System.out.println("| " + board[0] + " | "
-						+ board[1] + " | " + board[2]
-						+ " |");
-		System.out.println("|-----------|");
-		System.out.println("| " + board[3] + " | "
-						+ board[4] + " | " + board[5]
-						+ " |");
-		System.out.println("|-----------|");
-		System.out.println("| " + board[6] + " | "
-						+ board[7] + " | " + board[8]
-						+ " |");
-		System.out.println("|---|---|---|");
+	String render()
+	{
+		int n = board.size();
+		String cell = "-".repeat(String.valueOf(board.cells()).length() + 2);
+		String edge = "|" + (cell + "|").repeat(n);
+		String inner = "|" + "-".repeat(edge.length() - 2) + "|";
+		StringBuilder out = new StringBuilder(edge).append('\n');
+		for (int r = 0; r < n; r++) {
+			out.append('|');
+			for (int c = 0; c < n; c++) {
+				out.append(' ').append(slot(r * n + c)).append(" |");
+			}
+			out.append('\n').append(r == n - 1 ? edge : inner).append('\n');
+		}
+		return out.toString();
+	}
+}
+
+// Game server hosting any number of matches over TCP. One
+// selector thread owns every connection and match, so match
+// state needs no locking and a move is handled without any
+// thread hand-off. The protocol is one text line per message:
+//   client: PLAY [N K]   join the queue for an N x N, K in a row game
+//           MOVE <slot>  place a mark (slots count from 1)
+//           QUIT         leave the current match
+//   server: WAIT, START <match> <X|O> <N> <K>,
+//           MOVE <X|O> <slot>, END <X|O|draw> [forfeit], ERR <reason>
+// Two players waiting for the same board size are matched
+// as soon as the second one arrives.
+final class GameServer {
+
+	static final int DEFAULT_PORT = 5160;
+	private static final long REPORT_NANOS = 5_000_000_000L;
+
+	private static final class Session {
+		final SocketChannel channel;
+		SelectionKey key;
+		final ByteBuffer in = ByteBuffer.allocate(256);
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+		Match match;
+		byte mark;
+		Session opponent;
+		long waitingFor = -1;
+
+		Session(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+	}
+
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	// One waiting player per board size, keyed by N << 32 | K.
+	private final Map<Long, Session> waiting = new HashMap<>();
+	private int nextMatch;
+	private int connected;
+	private int live;
+	private long moves;
+	private long finished;
+
+	GameServer(int port) throws IOException
+	{
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	void serve() throws IOException
+	{
+		System.out.println("Game server listening on port "
+			+ server.socket().getLocalPort());
+		long lastReport = System.nanoTime();
+		long lastMoves = 0;
+		while (true) {
+			selector.select(1000);
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				try {
+					if (key.isAcceptable()) {
+						accept();
+					}
+					else {
+						Session s = (Session) key.attachment();
+						if (key.isReadable()) {
+							read(s);
+						}
+						if (key.isValid() && key.isWritable()) {
+							flush(s);
+						}
+					}
+				}
+				catch (IOException e) {
+					if (key.attachment() != null) {
+						close((Session) key.attachment());
+					}
+				}
+			}
+			long now = System.nanoTime();
+			if (now - lastReport >= REPORT_NANOS) {
+				System.out.printf(
+					"%d players, %d live matches, %d finished, %.0f moves/s%n",
+					connected, live, finished,
+					(moves - lastMoves) * 1e9 / (now - lastReport));
+				lastReport = now;
+				lastMoves = moves;
+			}
+		}
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Session s = new Session(channel);
+			s.key = channel.register(selector, SelectionKey.OP_READ, s);
+			connected++;
+		}
+	}
+
+	private void read(Session s) throws IOException
+	{
+		if (s.channel.read(s.in) < 0) {
+			close(s);
+			return;
+		}
+		s.in.flip();
+		int start = s.in.position();
+		for (int i = start; i < s.in.limit(); i++) {
+			if (s.in.get(i) == '\n') {
+				String line = new String(s.in.array(), start, i - start,
+					StandardCharsets.US_ASCII).trim();
+				handle(s, line);
+				if (!s.channel.isOpen()) {
+					return;
+				}
+				start = i + 1;
+			}
+		}
+		s.in.position(start);
+		s.in.compact();
+		// A line longer than the buffer is not a message.
+		if (!s.in.hasRemaining()) {
+			close(s);
+		}
+	}
+
+	private void handle(Session s, String line)
+	{
+		String[] word = line.split(" ");
+		try {
+			switch (word[0]) {
+			case "PLAY":
+				if (word.length != 1 && word.length != 3) {
+					send(s, "ERR PLAY takes no size or both N and K");
+					break;
+				}
+				int n = word.length == 3 ? Integer.parseInt(word[1]) : 3;
+				int k = word.length == 3 ? Integer.parseInt(word[2]) : 3;
+				join(s, n, k);
+				break;
+			case "MOVE":
+				move(s, Integer.parseInt(word[1]) - 1);
+				break;
+			case "QUIT":
+				leave(s);
+				break;
+			default:
+				send(s, "ERR Unknown command '" + word[0] + "'");
+			}
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			send(s, "ERR Malformed message '" + line + "'");
+		}
+	}
+
+	private void join(Session s, int n, int k)
+	{
+		if (s.match != null || s.waitingFor >= 0) {
+			send(s, "ERR Already playing");
+			return;
+		}
+		if (n < 1 || n > 32 || k < 1 || k > n) {
+			send(s, "ERR Need 1 <= K <= N <= 32");
+			return;
+		}
+		long size = (long) n << 32 | k;
+		Session other = waiting.remove(size);
+		if (other == null) {
+			s.waitingFor = size;
+			waiting.put(size, s);
+			send(s, "WAIT");
+			return;
+		}
+		other.waitingFor = -1;
+		Match match = new Match(++nextMatch, n, k);
+		other.match = match;
+		other.mark = GridBoard.X;
+		other.opponent = s;
+		s.match = match;
+		s.mark = GridBoard.O;
+		s.opponent = other;
+		live++;
+		send(other, "START " + match.id + " X " + n + " " + k);
+		send(s, "START " + match.id + " O " + n + " " + k);
+	}
+
+	private void move(Session s, int slot)
+	{
+		if (s.match == null) {
+			send(s, "ERR Not in a match");
+			return;
+		}
+		String refused = s.match.play(s.mark, slot);
+		if (refused != null) {
+			send(s, "ERR " + refused);
+			return;
+		}
+		moves++;
+		String moved = "MOVE " + Match.mark(s.mark) + " " + (slot + 1);
+		Session other = s.opponent;
+		send(s, moved);
+		if (s.match != null) {
+			send(other, moved);
+		}
+		// A connection that broke on the way has already ended the match.
+		if (s.match == null) {
+			return;
+		}
+		String result = s.match.result();
+		if (result != null) {
+			end(s, "END " + result);
+		}
+	}
+
+	// Leaving a match hands the win to the opponent.
+	private void leave(Session s)
+	{
+		if (s.waitingFor >= 0) {
+			waiting.remove(s.waitingFor);
+			s.waitingFor = -1;
+		}
+		if (s.match != null) {
+			end(s, "END " + Match.mark(s.opponent.mark) + " forfeit");
+		}
+	}
+
+	// The match is over before anyone is told, so a connection
+	// that fails while being told cannot end it a second time.
+	private void end(Session s, String message)
+	{
+		Session other = s.opponent;
+		s.match = null;
+		s.opponent = null;
+		other.match = null;
+		other.opponent = null;
+		live--;
+		finished++;
+		send(s, message);
+		send(other, message);
+	}
+
+	// Writing straight away; whatever the socket does not take
+	// is queued and written when it becomes writable. A failed
+	// write closes the session it was for, not the one that
+	// caused the message.
+	private void send(Session s, String message)
+	{
+		if (!s.channel.isOpen()) {
+			return;
+		}
+		ByteBuffer b = ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.US_ASCII));
+		try {
+			if (s.out.isEmpty()) {
+				s.channel.write(b);
+				if (!b.hasRemaining()) {
+					return;
+				}
+				s.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			s.out.add(b);
+		}
+		catch (IOException e) {
+			close(s);
+		}
+	}
+
+	private void flush(Session s) throws IOException
+	{
+		while (!s.out.isEmpty()) {
+			ByteBuffer b = s.out.peek();
+			s.channel.write(b);
+			if (b.hasRemaining()) {
+				return;
+			}
+			s.out.poll();
+		}
+		s.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void close(Session s)
+	{
+		if (!s.channel.isOpen()) {
+			return;
+		}
+		try {
+			s.channel.close();
+		}
+		catch (IOException e) {
+			// Nothing left to release.
+		}
+		connected--;
+		leave(s);
+	}
+
+	// "--server [port]"
+	static void main(String[] args)
+	{
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+		try {
+			new GameServer(port).serve();
+		}
+		catch (IOException e) {
+			System.out.println("Game server stopped: " + e.getMessage());
+		}
+	}
+}
+
+// Load generator for the game server: opens many bot
+// connections from one selector thread, each playing random
+// moves in back-to-back matches. Before each move a bot thinks
+// for a random 0.5 to 1.5 times the think time, so the bots do
+// not move in lock step. The time from sending a move until
+// the server echoes it back is recorded per move.
+final class BotClients {
+
+	// Latencies are counted in microsecond buckets up to this.
+	private static final int MAX_MICROS = 100_000;
+
+	private static final class Bot {
+		final SocketChannel channel;
+		SelectionKey key;
+		final ByteBuffer in = ByteBuffer.allocate(256);
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+		GridBoard board;
+		byte mark;
+		long sentAt;
+		long dueAt;
+
+		Bot(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+	}
+
+	private final Selector selector;
+	private final int n;
+	private final int k;
+	private final long thinkNanos;
+	private final PriorityQueue<Bot> thinking =
+		new PriorityQueue<>(Comparator.comparingLong((Bot b) -> b.dueAt));
+	private final long[] latency = new long[MAX_MICROS + 1];
+	private long moves;
+	private long games;
+	private int playing;
+	private boolean stopping;
+
+	BotClients(int n, int k, long thinkMillis) throws IOException
+	{
+		selector = Selector.open();
+		this.n = n;
+		this.k = k;
+		thinkNanos = thinkMillis * 1_000_000;
+	}
+
+	void run(int bots, int port, double seconds) throws IOException
+	{
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		for (int i = 0; i < bots; i++) {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Bot bot = new Bot(channel);
+			if (channel.connect(address)) {
+				bot.key = channel.register(selector, SelectionKey.OP_READ, bot);
+				send(bot, "PLAY " + n + " " + k);
+			}
+			else {
+				bot.key = channel.register(selector, SelectionKey.OP_CONNECT, bot);
+			}
+		}
+		long start = System.nanoTime();
+		long end = start + (long) (seconds * 1e9);
+		while (System.nanoTime() < end || playing > 0) {
+			// Matches in progress are finished, no new ones started.
+			long now = System.nanoTime();
+			stopping = now >= end;
+			while (!thinking.isEmpty() && thinking.peek().dueAt <= now) {
+				Bot bot = thinking.poll();
+				if (bot.channel.isOpen()) {
+					move(bot);
+				}
+			}
+			long wait = thinking.isEmpty() ? 100
+				: (thinking.peek().dueAt - now) / 1_000_000;
+			if (wait > 0) {
+				selector.select(Math.min(wait, 100));
+			}
+			else {
+				selector.selectNow();
+			}
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				Bot bot = (Bot) key.attachment();
+				try {
+					if (key.isConnectable()) {
+						bot.channel.finishConnect();
+						key.interestOps(SelectionKey.OP_READ);
+						send(bot, "PLAY " + n + " " + k);
+					}
+					else {
+						if (key.isReadable()) {
+							read(bot);
+						}
+						if (key.isValid() && key.isWritable()) {
+							flush(bot);
+						}
+					}
+				}
+				catch (IOException e) {
+					key.cancel();
+					bot.channel.close();
+				}
+			}
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		System.out.printf(
+			"%d bots, %.1f s: %d games, %.0f moves/s; move round trip p50 %s, p99 %s, p99.9 %s%n",
+			bots, elapsed, games, moves / elapsed,
+			percentile(0.50), percentile(0.99), percentile(0.999));
+	}
+
+	private void read(Bot bot) throws IOException
+	{
+		if (bot.channel.read(bot.in) < 0) {
+			throw new EOFException();
+		}
+		bot.in.flip();
+		int start = bot.in.position();
+		for (int i = start; i < bot.in.limit(); i++) {
+			if (bot.in.get(i) == '\n') {
+				handle(bot, new String(bot.in.array(), start, i - start,
+					StandardCharsets.US_ASCII));
+				start = i + 1;
+			}
+		}
+		bot.in.position(start);
+		bot.in.compact();
+	}
+
+	private void handle(Bot bot, String line) throws IOException
+	{
+		String[] word = line.split(" ");
+		switch (word[0]) {
+		case "START":
+			bot.board = new GridBoard(Integer.parseInt(word[3]), Integer.parseInt(word[4]));
+			bot.mark = word[2].equals("X") ? GridBoard.X : GridBoard.O;
+			playing++;
+			if (bot.mark == GridBoard.X) {
+				think(bot);
+			}
+			break;
+		case "MOVE":
+			bot.board.play(Integer.parseInt(word[2]) - 1);
+			if (word[1].equals(Match.mark(bot.mark))) {
+				long micros = (System.nanoTime() - bot.sentAt) / 1000;
+				latency[(int) Math.min(micros, MAX_MICROS)]++;
+				moves++;
+			}
+			else if (!bot.board.over()) {
+				think(bot);
+			}
+			break;
+		case "END":
+			playing--;
+			// Both bots of a match count it; the X bot records it.
+			if (bot.mark == GridBoard.X) {
+				games++;
+			}
+			if (!stopping) {
+				send(bot, "PLAY " + n + " " + k);
+			}
+			break;
+		case "ERR":
+			System.out.println("Server refused: " + line);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void think(Bot bot) throws IOException
+	{
+		if (thinkNanos == 0) {
+			move(bot);
+			return;
+		}
+		bot.dueAt = System.nanoTime() + thinkNanos / 2
+			+ ThreadLocalRandom.current().nextLong(thinkNanos);
+		thinking.add(bot);
+	}
+
+	private void move(Bot bot) throws IOException
+	{
+		int slot = bot.board.freeCell(
+			ThreadLocalRandom.current().nextInt(bot.board.freeCount()));
+		bot.sentAt = System.nanoTime();
+		send(bot, "MOVE " + (slot + 1));
+	}
+
+	private void send(Bot bot, String message) throws IOException
+	{
+		ByteBuffer b = ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.US_ASCII));
+		if (bot.out.isEmpty()) {
+			bot.channel.write(b);
+			if (!b.hasRemaining()) {
+				return;
+			}
+			bot.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		bot.out.add(b);
+	}
+
+	private void flush(Bot bot) throws IOException
+	{
+		while (!bot.out.isEmpty()) {
+			ByteBuffer b = bot.out.peek();
+			bot.channel.write(b);
+			if (b.hasRemaining()) {
+				return;
+			}
+			bot.out.poll();
+		}
+		bot.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private String percentile(double p)
+	{
+		long total = 0;
+		for (long c : latency) {
+			total += c;
+		}
+		long seen = 0;
+		for (int us = 0; us <= MAX_MICROS; us++) {
+			seen += latency[us];
+			if (seen > 0 && seen >= p * total) {
+				return us == MAX_MICROS ? ">" + us / 1000 + " ms"
+					: String.format("%.3f ms", us / 1000.0);
+			}
+		}
+		return "-";
+	}
+
+	// "--bots [bots] [seconds] [think ms] [port] [N] [K]"
+	static void main(String[] args)
+	{
+		int bots = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+		long think = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+		int port = args.length > 4 ? Integer.parseInt(args[4]) : GameServer.DEFAULT_PORT;
+		int n = args.length > 5 ? Integer.parseInt(args[5]) : 3;
+		int k = args.length > 6 ? Integer.parseInt(args[6]) : Math.min(n, 3);
+		try {
+			new BotClients(n, k, think).run(bots, port, seconds);
+		}
+		catch (IOException e) {
+			System.out.println("Load generator stopped: " + e.getMessage());
+		}
+	}
+}
+
+public class game{
+
+	// CheckWinner method will
+	// decide the combination
+	// of three box given below.
+	static String checkWinner(Match match)
+	{
+		return match.result();
+	}
+
+	// To print out the board.
+	static void printBoard(Match match)
+	{
+		System.out.print(match.render());
+	}
+
+	// The computer reads its moves from the move book and
+	// only searches if the book cannot be loaded.
+	static Strategy opponent()
+	{
+		try {
+			return new BookStrategy();
+		}
+		catch (UncheckedIOException e) {
+			System.out.println("Move book unavailable ("
+				+ e.getCause().getMessage() + "); the computer will search instead.");
+			return new MinimaxStrategy();
+		}
 	}
 
 	public static void main(String[] args)
 	{
+		if (args.length > 0 && args[0].equals("--simulate")) {
+			SelfPlay.main(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("--book")) {
+			try {
+				int solved = MoveBook.generate(Paths.get(MoveBook.FILE));
+				System.out.println(solved + " positions solved, move book written to "
+					+ MoveBook.FILE);
+			}
+			catch (IOException e) {
+				System.out.println("Unable to write the move book: " + e.getMessage());
+			}
+			return;
+		}
+		if (args.length > 0 && args[0].equals("--server")) {
+			GameServer.main(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("--bots")) {
+			BotClients.main(args);
+			return;
+		}
+
+		// "java game N K" plays N x N with K in a row; "java game --vs-computer"
+		// plays X against the computer, which knows the 3x3 game only.
+		boolean computer = args.length > 0 && args[0].equals("--vs-computer");
+		if (computer) {
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : Math.min(n, 3);
 		Scanner in = new Scanner(System.in);
-		board = new String[9];
-		turn = "X";
+		Match match = new Match(1, n, k);
+		GridBoard board = match.board;
 		String winner = null;
 
-		for (int a = 0; a < 9; a++) {
-			board[a] = String.valueOf(a + 1);
+		System.out.println("Welcome to " + n + "x" + n + " Tic Tac Toe ("
+			+ k + " in a row wins).");
+		if (computer && !(n == 3 && k == 3)) {
+			System.out.println("The computer plays 3x3 only; two players take turns.");
+			computer = false;
 		}
-
-		System.out.println("Welcome to 3x3 Tic Tac Toe.");
-		printBoard();
+		Strategy ai = computer ? opponent() : null;
+		printBoard(match);
 
 		System.out.println(
 			"X will play first. Enter a slot number to place X in:");
 
 		while (winner == null) {
 			int numInput;
-			
+
 		// Exception handling.
-		// numInput will take input from user like from 1 to 9.
-		// If it is not in range from 1 to 9.
+		// numInput will take input from user like from 1 to N*N.
+		// If it is not in range from 1 to N*N.
 		// then it will show you an error "Invalid input."
 			try {
 				numInput = in.nextInt();
-				if (!(numInput > 0 && numInput <= 9)) {
+				if (!(numInput > 0 && numInput <= board.cells())) {
 					System.out.println(
 						"Invalid input; re-enter slot number:");
 					continue;
 				}
 			}
 			catch (InputMismatchException e) {
+				in.next();
 				System.out.println(
 					"Invalid input; re-enter slot number:");
 				continue;
 			}
-			
+
 			// This game has two player x and O.
 			// Here is the logic to decide the turn.
-			if (board[numInput - 1].equals(
-					String.valueOf(numInput))) {
-				board[numInput - 1] = turn;
+			if (board.isFree(numInput - 1)) {
+				match.play(board.toMove(), numInput - 1);
+				printBoard(match);
+				winner = checkWinner(match);
 
-				if (turn.equals("X")) {
-					turn = "O";
-				}
-				else {
-					turn = "X";
+				// The computer plays O straight after X.
+				if (winner == null && computer) {
+					int move = ai.move(board);
+					System.out.println("Computer plays slot " + (move + 1) + ".");
+					match.play(board.toMove(), move);
+					printBoard(match);
+					winner = checkWinner(match);
 				}
 
-				printBoard();
-				winner = checkWinner();
+				// To enter the X Or O at the exact place on board.
+				if (winner == null) {
+					String turn = match.turn();
+					System.out.println(
+						turn + "'s turn; enter a slot number to place "
+						+ turn + " in:");
+				}
 			}
 			else {
 				System.out.println(
 					"Slot already taken; re-enter slot number:");
 			}
 		}
-		
+
 		// If no one win or lose from both player x and O.
 		// then here is the logic to print "draw".
 		if (winner.equalsIgnoreCase("draw")) {
 			System.out.println(
 				"It's a draw! Thanks for playing.");
 		}
-		
+
 		// For winner -to display Congratulations! message.
 		else {
 			System.out.println(
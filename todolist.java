@@ -1,68 +1,1519 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
-public class TodoList {
-    private List<String> tasks;
+class Task {
+    static final int HIGH = 1;
+    static final int NORMAL = 2;
+    static final int LOW = 3;
+    static final String[] PRIORITIES = {"", "high", "normal", "low"};
+
+    final long id;
+    final String text;
+    boolean done;
+    int priority = NORMAL;
+    // Epoch milliseconds, 0 when the task has no due date
+    long due;
+    Set<String> tags = Collections.emptySet();
+    // Bumped by every change; writers pass the version they read and are refused
+    // if the task has changed since
+    long version = 1;
+
+    // Position in the DueIndex heap, -1 when not in it
+    int heapIndex = -1;
+    // Day of the DueIndex wheel bucket holding the task, -1 when in none
+    long wheelDay = -1;
+
+    Task(long id, String text, boolean done) {
+        this.id = id;
+        this.text = text;
+        this.done = done;
+    }
+
+    // Priority, due date and tags as stored in the log: "priority|due|tag,tag"
+    String attributes() {
+        return priority + "|" + due + "|" + String.join(",", tags);
+    }
+
+    void setAttributes(String encoded) {
+        String[] part = encoded.split("\\|", -1);
+        priority = Integer.parseInt(part[0]);
+        due = Long.parseLong(part[1]);
+        tags = part[2].isEmpty() ? Collections.emptySet() : new LinkedHashSet<>(Arrays.asList(part[2].split(",")));
+    }
+
+    boolean hasAttributes() {
+        return priority != NORMAL || due != 0 || !tags.isEmpty();
+    }
+}
+
+// Tasks kept in an append-only log. Every change is one record:
+//   type (1 byte), task id (8), text length (4), text (UTF-8), CRC32 of the above (4)
+// Priority, due date and tags are a separate ATTRIBUTES record after the task's ADD.
+// Replaying the log on start rebuilds the tasks; a torn record at the end (a crash
+// while writing) fails its CRC and is cut off. Once the log holds more dead records
+// (deleted tasks, completions already folded in) than live ones it is rewritten
+// with one record per task, plus its ATTRIBUTES and a VERSION record where needed.
+class TaskStore {
+    static final byte ADD = 'A';
+    static final byte ADD_DONE = 'C';
+    static final byte COMPLETE = 'D';
+    static final byte DELETE = 'X';
+    static final byte ATTRIBUTES = 'M';
+    // Next id to hand out, so ids of deleted tasks are never reused after compaction
+    static final byte NEXT_ID = 'N';
+    // Version of a compacted task whose version no longer follows from its records
+    static final byte VERSION = 'V';
+
+    private static final int COMPACT_MIN = 10_000;
+
+    private final Path file;
+    private final boolean sync;
+    // Insertion ordered, so listing keeps the order tasks were added in
+    private final Map<Long, Task> tasks = new LinkedHashMap<>();
+    private long nextId = 1;
+    private long records;
+    // Records a compacted log would hold: one per task, two with attributes
+    private long liveRecords;
+    private FileOutputStream stream;
+    private DataOutputStream out;
+    // Records appended since opening, and how many of them are known to be on disk
+    private long appended;
+    private volatile long synced;
+    private final Object syncLock = new Object();
+    // After a failed compaction, the record count at which to try again
+    private long retryCompactionAt;
+
+    // sync forces every change to disk before returning; without it callers use
+    // syncTo to make their changes durable. The store's monitor guards all changes
+    TaskStore(Path file, boolean sync) throws IOException {
+        this.file = file;
+        this.sync = sync;
+        long good = replay();
+        for (Task t : tasks.values()) {
+            liveRecords += compactedRecords(t);
+        }
+        if (Files.exists(file) && Files.size(file) > good) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(good);
+            }
+        }
+        openLog();
+    }
+
+    Task add(String text) throws IOException {
+        return add(text, Task.NORMAL, 0, Collections.emptySet());
+    }
+
+    // The task and its attributes are flushed together
+    synchronized Task add(String text, int priority, long due, Set<String> tags) throws IOException {
+        Task t = new Task(nextId++, text, false);
+        t.priority = priority;
+        t.due = due;
+        t.tags = tags;
+        tasks.put(t.id, t);
+        append(ADD, t.id, text);
+        liveRecords++;
+        if (t.hasAttributes()) {
+            append(ATTRIBUTES, t.id, t.attributes());
+            liveRecords++;
+        }
+        commit();
+        return t;
+    }
+
+    synchronized boolean complete(long id) throws IOException {
+        Task t = tasks.get(id);
+        if (t == null || t.done) {
+            return false;
+        }
+        liveRecords -= compactedRecords(t);
+        t.done = true;
+        t.version++;
+        liveRecords += compactedRecords(t);
+        append(COMPLETE, id, "");
+        commit();
+        return true;
+    }
+
+    synchronized boolean delete(long id) throws IOException {
+        Task t = tasks.remove(id);
+        if (t == null) {
+            return false;
+        }
+        liveRecords -= compactedRecords(t);
+        append(DELETE, id, "");
+        commit();
+        return true;
+    }
+
+    synchronized Task get(long id) {
+        return tasks.get(id);
+    }
+
+    Collection<Task> all() {
+        return tasks.values();
+    }
 
-    public TodoList() {
-        tasks = new ArrayList<>();
+    // The live tasks by id; read-only for callers
+    Map<Long, Task> byId() {
+        return Collections.unmodifiableMap(tasks);
     }
 
-    public void addTask(String task) {
-        tasks.add(task);
+    synchronized int size() {
+        return tasks.size();
+    }
+
+    // Sequence number of the last record appended, for syncTo
+    synchronized long appended() {
+        return appended;
+    }
+
+    // Group commit: returns once every record up to seq is on disk. The first caller
+    // in syncs for all the records appended before it started, so concurrent writers
+    // waiting here mostly find their records already synced and skip the fsync
+    void syncTo(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= seq) {
+                return;
+            }
+            long target;
+            FileOutputStream s;
+            synchronized (this) {
+                target = appended;
+                s = stream;
+            }
+            try {
+                s.getFD().sync();
+            } catch (IOException e) {
+                // A compaction replaced the stream. If it did not sync everything itself
+                // (it failed), syncing the reopened stream syncs the same file
+                if (synced < seq) {
+                    synchronized (this) {
+                        s = stream;
+                    }
+                    s.getFD().sync();
+                }
+            }
+            synced = Math.max(synced, target);
+        }
     }
 
-    public void removeTask(int index) {
-        if (index >= 0 && index < tasks.size()) {
-            tasks.remove(index);
+    synchronized void close() throws IOException {
+        out.close();
+    }
+
+    // Rewriting the log with one record per live task; the new log replaces the old
+    // one only once it is completely on disk
+    synchronized void compact() throws IOException {
+        Path tmp = Paths.get(file + ".tmp");
+        int written = 1;
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+             DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            writeRecord(tmpOut, NEXT_ID, nextId, "");
+            for (Task t : tasks.values()) {
+                writeRecord(tmpOut, t.done ? ADD_DONE : ADD, t.id, t.text);
+                written++;
+                if (t.hasAttributes()) {
+                    writeRecord(tmpOut, ATTRIBUTES, t.id, t.attributes());
+                    written++;
+                }
+                if (t.version != 1) {
+                    writeRecord(tmpOut, VERSION, t.id, Long.toString(t.version));
+                    written++;
+                }
+            }
+            tmpOut.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        // The current log stays open until the new one is complete, and is reopened
+        // whether or not the new one could replace it
+        out.close();
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            records = written;
+            synced = appended;
+        } finally {
+            openLog();
+        }
+    }
+
+    // Records the task takes in a compacted log; replaying an ADD gives version 1
+    private static int compactedRecords(Task t) {
+        return 1 + (t.hasAttributes() ? 1 : 0) + (t.version != 1 ? 1 : 0);
+    }
+
+    private void openLog() throws IOException {
+        stream = new FileOutputStream(file.toFile(), true);
+        out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+    }
+
+    private void append(byte type, long id, String text) throws IOException {
+        writeRecord(out, type, id, text);
+        records++;
+        appended++;
+    }
+
+    // Making the appended records durable, then compacting if the log is mostly dead
+    private void commit() throws IOException {
+        out.flush();
+        if (sync) {
+            stream.getFD().sync();
+            synced = appended;
+        }
+        long dead = records - liveRecords;
+        if (dead > COMPACT_MIN && dead > liveRecords && records >= retryCompactionAt) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // The change itself is saved; compaction is tried again COMPACT_MIN records on
+                retryCompactionAt = records + COMPACT_MIN;
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream to, byte type, long id, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(13 + body.length);
+        DataOutputStream rec = new DataOutputStream(buf);
+        rec.writeByte(type);
+        rec.writeLong(id);
+        rec.writeInt(body.length);
+        rec.write(body);
+        CRC32 crc = new CRC32();
+        crc.update(buf.toByteArray());
+        rec.writeInt((int) crc.getValue());
+        buf.writeTo(to);
+    }
+
+    // Applying every intact record; returns the length of the intact part of the log
+    private long replay() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long good = 0;
+        byte[] head = new byte[13];
+        byte[] body = new byte[256];
+        CRC32 crc = new CRC32();
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 20))) {
+            while (true) {
+                in.readFully(head);
+                byte type = head[0];
+                long id = ((long) readInt(head, 1) << 32) | (readInt(head, 5) & 0xffffffffL);
+                int len = readInt(head, 9);
+                if (len < 0 || len > 1 << 24) {
+                    break;
+                }
+                if (body.length < len) {
+                    body = new byte[Math.max(len, body.length * 2)];
+                }
+                in.readFully(body, 0, len);
+                crc.reset();
+                crc.update(head);
+                crc.update(body, 0, len);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                apply(type, id, len == 0 ? "" : new String(body, 0, len, StandardCharsets.UTF_8));
+                good += 13 + len + 4;
+                records++;
+            }
+        } catch (EOFException e) {
+            // End of the log, possibly in the middle of a torn record
+        }
+        return good;
+    }
+
+    private void apply(byte type, long id, String text) {
+        switch (type) {
+            case ADD:
+            case ADD_DONE:
+                tasks.put(id, new Task(id, text, type == ADD_DONE));
+                nextId = Math.max(nextId, id + 1);
+                break;
+            case COMPLETE:
+                Task t = tasks.get(id);
+                if (t != null) {
+                    t.done = true;
+                    t.version++;
+                }
+                break;
+            case DELETE:
+                tasks.remove(id);
+                break;
+            case ATTRIBUTES:
+                Task a = tasks.get(id);
+                if (a != null) {
+                    a.setAttributes(text);
+                }
+                break;
+            case NEXT_ID:
+                nextId = Math.max(nextId, id);
+                break;
+            case VERSION:
+                Task v = tasks.get(id);
+                if (v != null) {
+                    v.version = Long.parseLong(text);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static int readInt(byte[] b, int at) {
+        return (b[at] & 0xff) << 24 | (b[at + 1] & 0xff) << 16 | (b[at + 2] & 0xff) << 8 | (b[at + 3] & 0xff);
+    }
+}
+
+// Open tasks with a due date, indexed for the scheduling queries:
+//  - an indexed binary min-heap of upcoming tasks (earliest due first, higher priority
+//    first on ties); "next due" is its top, O(1), and adding or removing is O(log n)
+//  - a timing wheel of one bucket per day for the next WHEEL_DAYS days, tasks further
+//    out waiting in an overflow set that is cascaded into the wheel as days pass; "due
+//    within d days" reads d buckets
+//  - the overdue set, fed from the top of the heap as due times pass
+// A reminder thread sleeps until the top of the heap falls due, moves the due tasks to
+// overdue and reports each one, so nothing ever scans the whole list.
+class DueIndex {
+    static final int WHEEL_DAYS = 64;
+
+    private final ZoneId zone;
+    private final List<Task> heap = new ArrayList<>();
+    private final List<Set<Task>> wheel = new ArrayList<>(WHEEL_DAYS);
+    private final Set<Task> overflow = new LinkedHashSet<>();
+    private final Set<Task> overdue = new LinkedHashSet<>();
+    // First day covered by the wheel, as days since the epoch
+    private long wheelStart;
+    private Thread reminders;
+
+    DueIndex(ZoneId zone, long now) {
+        this.zone = zone;
+        for (int i = 0; i < WHEEL_DAYS; i++) {
+            wheel.add(new LinkedHashSet<>());
+        }
+        wheelStart = day(now);
+    }
+
+    long day(long time) {
+        return Instant.ofEpochMilli(time).atZone(zone).toLocalDate().toEpochDay();
+    }
+
+    synchronized void add(Task t, long now) {
+        if (t.due == 0 || t.done) {
+            return;
+        }
+        if (t.due <= now) {
+            overdue.add(t);
+            return;
+        }
+        heapAdd(t);
+        wheelAdd(t);
+        // The reminder thread may be waiting for a later task
+        notifyAll();
+    }
+
+    synchronized void remove(Task t) {
+        overdue.remove(t);
+        if (t.heapIndex >= 0) {
+            heapRemove(t.heapIndex);
+        }
+        wheelRemove(t);
+    }
+
+    // Upcoming task due first, or null
+    synchronized Task nextDue(long now) {
+        expire(now);
+        return heap.isEmpty() ? null : heap.get(0);
+    }
+
+    synchronized List<Task> overdue(long now) {
+        expire(now);
+        return new ArrayList<>(overdue);
+    }
+
+    // Upcoming tasks due from now until the end of the day, days - 1 days from today,
+    // earliest first
+    synchronized List<Task> dueWithin(long now, int days) {
+        expire(now);
+        advance(day(now));
+        List<Task> out = new ArrayList<>();
+        for (int d = 0; d < Math.min(days, WHEEL_DAYS); d++) {
+            out.addAll(wheel.get((int) Math.floorMod(wheelStart + d, (long) WHEEL_DAYS)));
+        }
+        long last = wheelStart + days - 1;
+        if (days > WHEEL_DAYS) {
+            for (Task t : overflow) {
+                if (t.wheelDay <= last) {
+                    out.add(t);
+                }
+            }
+        }
+        out.sort(DueIndex::earlier);
+        return out;
+    }
+
+    // Moving every upcoming task whose due time has passed to overdue; returns them
+    synchronized List<Task> expire(long now) {
+        List<Task> due = new ArrayList<>();
+        while (!heap.isEmpty() && heap.get(0).due <= now) {
+            Task t = heap.get(0);
+            heapRemove(0);
+            wheelRemove(t);
+            overdue.add(t);
+            due.add(t);
+        }
+        return due;
+    }
+
+    // Starting the thread that hands each task to reminder when it falls due
+    synchronized void startReminders(Consumer<Task> reminder) {
+        reminders = new Thread(() -> {
+            try {
+                while (true) {
+                    List<Task> due;
+                    synchronized (this) {
+                        long now = System.currentTimeMillis();
+                        due = expire(now);
+                        if (due.isEmpty()) {
+                            // 0 waits until a task is added
+                            wait(heap.isEmpty() ? 0 : heap.get(0).due - now);
+                            continue;
+                        }
+                    }
+                    for (Task t : due) {
+                        reminder.accept(t);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }, "todo-reminders");
+        reminders.setDaemon(true);
+        reminders.start();
+    }
+
+    synchronized void stopReminders() {
+        if (reminders != null) {
+            reminders.interrupt();
+        }
+    }
+
+    static int earlier(Task a, Task b) {
+        if (a.due != b.due) {
+            return Long.compare(a.due, b.due);
+        }
+        if (a.priority != b.priority) {
+            return Integer.compare(a.priority, b.priority);
+        }
+        return Long.compare(a.id, b.id);
+    }
+
+    // Moving the wheel forward to today: buckets of past days are emptied (their tasks
+    // have expired through the heap) and overflow tasks now in range join the wheel
+    private void advance(long today) {
+        if (today <= wheelStart) {
+            return;
+        }
+        for (long d = wheelStart; d < Math.min(today, wheelStart + WHEEL_DAYS); d++) {
+            Set<Task> bucket = wheel.get((int) Math.floorMod(d, (long) WHEEL_DAYS));
+            for (Task t : bucket) {
+                t.wheelDay = -1;
+            }
+            bucket.clear();
+        }
+        wheelStart = today;
+        Iterator<Task> it = overflow.iterator();
+        while (it.hasNext()) {
+            Task t = it.next();
+            if (t.wheelDay < wheelStart + WHEEL_DAYS) {
+                it.remove();
+                wheel.get((int) Math.floorMod(t.wheelDay, (long) WHEEL_DAYS)).add(t);
+            }
+        }
+    }
+
+    private void wheelAdd(Task t) {
+        advance(day(System.currentTimeMillis()));
+        t.wheelDay = day(t.due);
+        if (t.wheelDay >= wheelStart + WHEEL_DAYS) {
+            overflow.add(t);
         } else {
-            System.out.println("Invalid index");
+            wheel.get((int) Math.floorMod(t.wheelDay, (long) WHEEL_DAYS)).add(t);
+        }
+    }
+
+    private void wheelRemove(Task t) {
+        if (t.wheelDay < 0) {
+            return;
+        }
+        if (!overflow.remove(t)) {
+            wheel.get((int) Math.floorMod(t.wheelDay, (long) WHEEL_DAYS)).remove(t);
+        }
+        t.wheelDay = -1;
+    }
+
+    private void heapAdd(Task t) {
+        t.heapIndex = heap.size();
+        heap.add(t);
+        siftUp(t.heapIndex);
+    }
+
+    private void heapRemove(int i) {
+        Task gone = heap.get(i);
+        Task last = heap.remove(heap.size() - 1);
+        gone.heapIndex = -1;
+        if (i < heap.size()) {
+            place(last, i);
+            siftDown(i);
+            siftUp(last.heapIndex);
+        }
+    }
+
+    private void siftUp(int i) {
+        Task t = heap.get(i);
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (earlier(t, heap.get(parent)) >= 0) {
+                break;
+            }
+            place(heap.get(parent), i);
+            i = parent;
         }
+        place(t, i);
     }
 
-    public void listTasks() {
-        System.out.println("Task List:");
-        for (int i = 0; i < tasks.size(); i++) {
-            System.out.println(i + 1 + ". " + tasks.get(i));
+    private void siftDown(int i) {
+        Task t = heap.get(i);
+        int n = heap.size();
+        while (2 * i + 1 < n) {
+            int child = 2 * i + 1;
+            if (child + 1 < n && earlier(heap.get(child + 1), heap.get(child)) < 0) {
+                child++;
+            }
+            if (earlier(heap.get(child), t) >= 0) {
+                break;
+            }
+            place(heap.get(child), i);
+            i = child;
+        }
+        place(t, i);
+    }
+
+    private void place(Task t, int i) {
+        heap.set(i, t);
+        t.heapIndex = i;
+    }
+}
+
+// Text search over the tasks through a trigram index. The lower-cased text of every
+// task is cut into overlapping three-character grams, plus one gram per word made of
+// a word-start marker and the word's first two characters. Each gram maps to the ids
+// of the tasks containing it; ids only grow, so a posting list is appended in order
+// and stored as varint deltas (one or two bytes per id). A search intersects the lists
+// of the query's grams, shortest first, and checks the few candidates left against the
+// text. Removed tasks stay in the lists until the index is rebuilt, which happens once
+// they outnumber the live tasks; until then candidates that no longer exist are skipped.
+// The index is built on the first search, so start-up does not wait for it.
+class TaskSearch {
+    private static final char WORD_START = '\u0001';
+    private static final int REBUILD_MIN = 10_000;
+
+    private static final class Postings {
+        byte[] data = new byte[4];
+        int size;
+        int count;
+        long last;
+
+        void add(long id) {
+            if (size + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            long delta = id - last;
+            last = id;
+            while (delta >= 0x80) {
+                data[size++] = (byte) (delta | 0x80);
+                delta >>>= 7;
+            }
+            data[size++] = (byte) delta;
+            count++;
+        }
+
+        long[] ids() {
+            long[] out = new long[count];
+            long id = 0;
+            int at = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[at++];
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                out[i] = id;
+            }
+            return out;
         }
     }
 
+    private final Map<Long, Task> tasks;
+    // Open-addressing table from gram (stored + 1, 0 marks a free slot) to its postings
+    private long[] keys;
+    private Postings[] lists;
+    private int used;
+    private boolean built;
+    private int indexed;
+    private int removed;
+
+    // tasks is the live task map the ids are resolved against
+    TaskSearch(Map<Long, Task> tasks) {
+        this.tasks = tasks;
+    }
+
+    synchronized void add(Task t) {
+        if (!built) {
+            return;
+        }
+        for (long gram : taskGrams(t.text.toLowerCase(Locale.ROOT))) {
+            postings(gram, true).add(t.id);
+        }
+        indexed++;
+    }
+
+    synchronized void remove(Task t) {
+        if (!built) {
+            return;
+        }
+        removed++;
+        if (removed > REBUILD_MIN && removed > indexed - removed) {
+            rebuild();
+        }
+    }
+
+    // Tasks whose text contains query anywhere, in id order
+    synchronized List<Task> containing(String query) {
+        String q = query.toLowerCase(Locale.ROOT);
+        return find(q, queryGrams(q, false), t -> t.text.toLowerCase(Locale.ROOT).contains(q));
+    }
+
+    // Tasks with a word starting with prefix, in id order
+    synchronized List<Task> withWordPrefix(String prefix) {
+        String p = prefix.toLowerCase(Locale.ROOT);
+        return find(p, queryGrams(p, true), t -> {
+            String text = t.text.toLowerCase(Locale.ROOT);
+            for (int at = text.indexOf(p); at >= 0; at = text.indexOf(p, at + 1)) {
+                if (at == 0 || !Character.isLetterOrDigit(text.charAt(at - 1))) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    private List<Task> find(String q, long[] needed, Predicate<Task> matches) {
+        List<Task> out = new ArrayList<>();
+        if (q.isEmpty()) {
+            return out;
+        }
+        if (!built) {
+            rebuild();
+        }
+        if (needed.length == 0) {
+            // Too short to have a gram: checking every task
+            for (Task t : tasks.values()) {
+                if (matches.test(t)) {
+                    out.add(t);
+                }
+            }
+            return out;
+        }
+        List<Postings> lists = new ArrayList<>();
+        for (long gram : needed) {
+            Postings p = postings(gram, false);
+            if (p == null) {
+                return out;
+            }
+            lists.add(p);
+        }
+        lists.sort(Comparator.comparingInt(p -> p.count));
+        long[] candidates = lists.get(0).ids();
+        int n = candidates.length;
+        for (int i = 1; i < lists.size() && n > 0; i++) {
+            n = intersect(candidates, n, lists.get(i).ids());
+        }
+        for (int i = 0; i < n; i++) {
+            Task t = tasks.get(candidates[i]);
+            if (t != null && matches.test(t)) {
+                out.add(t);
+            }
+        }
+        return out;
+    }
+
+    // Keeping the first n ids of a that are also in b (both ascending); returns the new n
+    private static int intersect(long[] a, int n, long[] b) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < n && j < b.length; i++) {
+            while (j < b.length && b[j] < a[i]) {
+                j++;
+            }
+            if (j < b.length && b[j] == a[i]) {
+                a[kept++] = a[i];
+            }
+        }
+        return kept;
+    }
+
+    private Postings postings(long gram, boolean create) {
+        long key = gram + 1;
+        int mask = keys.length - 1;
+        int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return lists[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (!create) {
+            return null;
+        }
+        if (++used * 2 > keys.length) {
+            grow();
+            return postings(gram, true);
+        }
+        keys[slot] = key;
+        return lists[slot] = new Postings();
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Postings[] oldLists = lists;
+        keys = new long[oldKeys.length * 2];
+        lists = new Postings[oldKeys.length * 2];
+        used = 0;
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = (int) (oldKeys[i] * 0x9E3779B97F4A7C15L >>> 40) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                lists[slot] = oldLists[i];
+                used++;
+            }
+        }
+    }
+
+    private void rebuild() {
+        keys = new long[1 << 12];
+        lists = new Postings[1 << 12];
+        used = 0;
+        indexed = 0;
+        removed = 0;
+        built = true;
+        for (Task t : tasks.values()) {
+            add(t);
+        }
+    }
+
+    // Grams a task is indexed under: the trigrams of its text plus a word-start gram
+    // for every word beginning with a letter or digit
+    private static long[] taskGrams(String text) {
+        long[] out = new long[2 * text.length()];
+        int n = trigrams(text, out);
+        for (int i = 0; i + 2 <= text.length(); i++) {
+            boolean start = i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1));
+            if (start && Character.isLetterOrDigit(text.charAt(i))) {
+                out[n++] = gram(WORD_START, text.charAt(i), text.charAt(i + 1));
+            }
+        }
+        return distinct(out, n);
+    }
+
+    // Grams every match of a query must be indexed under. A substring can start inside
+    // a word, so it only has trigrams (none below three characters, which scans the
+    // tasks); a word prefix adds its word-start gram under the same rule as indexing,
+    // so a prefix like "#urgent" is found through its trigrams alone
+    private static long[] queryGrams(String text, boolean wordPrefix) {
+        long[] out = new long[text.length() + 1];
+        int n = trigrams(text, out);
+        if (wordPrefix && text.length() >= 2 && Character.isLetterOrDigit(text.charAt(0))) {
+            out[n++] = gram(WORD_START, text.charAt(0), text.charAt(1));
+        }
+        return distinct(out, n);
+    }
+
+    private static int trigrams(String text, long[] out) {
+        int n = 0;
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            out[n++] = gram(text.charAt(i), text.charAt(i + 1), text.charAt(i + 2));
+        }
+        return n;
+    }
+
+    // The first n grams of out, sorted and without repeats
+    private static long[] distinct(long[] out, int n) {
+        Arrays.sort(out, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || out[i] != out[distinct - 1]) {
+                out[distinct++] = out[i];
+            }
+        }
+        return Arrays.copyOf(out, distinct);
+    }
+
+    private static long gram(char a, char b, char c) {
+        return (long) a << 32 | (long) b << 16 | c;
+    }
+}
+
+// Named task lists shared by many clients, each kept in its own log under one
+// directory. A list's TaskStore is its lock, so changes to one list are serialised
+// while different lists are changed in parallel. The stores do not sync each change:
+// a batch is applied under the list's lock and then made durable with one group
+// commit outside it, so concurrent writers to a list share fsyncs.
+//
+// A batch is one operation per line:
+//   add <priority> <due millis> <tag,tag|-> <text>
+//   complete <id> [<version>]
+//   delete <id> [<version>]
+// and gets one result line per operation:
+//   ok <id> <version>, conflict <id> <current version>, missing <id> or error <message>
+// Given a version, complete and delete only apply if the task is still at it.
+class TaskService {
+    static final Pattern LIST_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final Path dir;
+    private final Map<String, TaskStore> lists = new ConcurrentHashMap<>();
+    final LongAdder writes = new LongAdder();
+
+    TaskService(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    TaskStore list(String name) throws IOException {
+        if (!LIST_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid list name: " + name);
+        }
+        TaskStore store = lists.get(name);
+        if (store != null) {
+            return store;
+        }
+        // Opening replays the log, which computeIfAbsent could not do with an IOException
+        synchronized (lists) {
+            store = lists.get(name);
+            if (store == null) {
+                store = new TaskStore(dir.resolve(name + ".log"), false);
+                lists.put(name, store);
+            }
+            return store;
+        }
+    }
+
+    List<String> apply(String name, List<String> batch) throws IOException {
+        TaskStore store = list(name);
+        List<String> results = new ArrayList<>(batch.size());
+        long seq;
+        synchronized (store) {
+            for (String op : batch) {
+                results.add(applyOne(store, op));
+            }
+            seq = store.appended();
+        }
+        store.syncTo(seq);
+        writes.add(batch.size());
+        return results;
+    }
+
+    private static String applyOne(TaskStore store, String op) throws IOException {
+        String[] part = op.trim().split(" ", 5);
+        try {
+            switch (part[0]) {
+                case "add": {
+                    if (part.length < 5) {
+                        return "error add needs a priority, due time, tags and text";
+                    }
+                    int priority = Integer.parseInt(part[1]);
+                    if (priority < Task.HIGH || priority > Task.LOW) {
+                        return "error invalid priority " + part[1];
+                    }
+                    Set<String> tags = part[3].equals("-") ? Collections.emptySet() : TodoList.parseTags(part[3]);
+                    Task t = store.add(part[4], priority, Long.parseLong(part[2]), tags);
+                    return "ok " + t.id + " " + t.version;
+                }
+                case "complete":
+                case "delete": {
+                    if (part.length < 2 || part.length > 3) {
+                        return "error " + part[0] + " needs an id and optionally a version";
+                    }
+                    long id = Long.parseLong(part[1]);
+                    Task t = store.get(id);
+                    if (t == null) {
+                        return "missing " + id;
+                    }
+                    if (part.length == 3 && Long.parseLong(part[2]) != t.version) {
+                        return "conflict " + id + " " + t.version;
+                    }
+                    if (part[0].equals("delete")) {
+                        store.delete(id);
+                        return "ok " + id + " " + t.version;
+                    }
+                    store.complete(id);
+                    return "ok " + id + " " + t.version;
+                }
+                default:
+                    return "error unknown operation '" + part[0] + "'";
+            }
+        } catch (NumberFormatException e) {
+            return "error bad number in '" + op.trim() + "'";
+        }
+    }
+
+    // One line per task: id, version, done, priority, due, tags, text separated by tabs
+    String render(String name) throws IOException {
+        TaskStore store = list(name);
+        StringBuilder text = new StringBuilder();
+        synchronized (store) {
+            for (Task t : store.all()) {
+                text.append(t.id).append('\t').append(t.version).append('\t').append(t.done ? 1 : 0)
+                        .append('\t').append(t.priority).append('\t').append(t.due)
+                        .append('\t').append(t.tags.isEmpty() ? "-" : String.join(",", t.tags))
+                        .append('\t').append(t.text).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    void close() throws IOException {
+        for (TaskStore store : lists.values()) {
+            store.close();
+        }
+    }
+}
+
+// The TaskService over HTTP on the loopback interface:
+//   GET /lists/<name>   the tasks, as TaskService.render
+//   POST /lists/<name>  a batch of operations, answered with one result line each
+// Requests run on virtual threads where the JDK has them (21 and later); on older
+// JDKs a fixed pool of platform threads stands in, sized for threads blocked on fsync.
+class TaskApi {
+    static final int DEFAULT_PORT = 5170;
+    static final int POOL_THREADS = 64;
+
+    static HttpServer start(TaskService service, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.createContext("/lists/", exchange -> handle(service, exchange));
+        server.setExecutor(requestExecutor());
+        server.start();
+        return server;
+    }
+
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(POOL_THREADS);
+        }
+    }
+
+    private static void handle(TaskService service, HttpExchange exchange) throws IOException {
+        String name = exchange.getRequestURI().getPath().substring("/lists/".length());
+        try {
+            switch (exchange.getRequestMethod()) {
+                case "GET":
+                    reply(exchange, 200, service.render(name));
+                    break;
+                case "POST": {
+                    String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                    List<String> batch = new ArrayList<>();
+                    for (String line : body.split("\n")) {
+                        if (!line.isBlank()) {
+                            batch.add(line);
+                        }
+                    }
+                    reply(exchange, 200, String.join("\n", service.apply(name, batch)) + "\n");
+                    break;
+                }
+                default:
+                    reply(exchange, 405, "Only GET and POST are supported\n");
+            }
+        } catch (IllegalArgumentException e) {
+            reply(exchange, 400, e.getMessage() + "\n");
+        } catch (IOException e) {
+            reply(exchange, 500, "Unable to save the change: " + e.getMessage() + "\n");
+        }
+    }
+
+    private static void reply(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+}
+
+// Load for the TaskApi: each client adds a batch of tasks to one of a few shared
+// lists, then deletes them again at the versions it was given, and so on
+class TaskLoad {
+    private final int clients;
+    private final int batch;
+    private final int lists;
+    private final URI base;
+    private final HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    TaskLoad(int clients, int batch, int lists, int port) {
+        this.clients = clients;
+        this.batch = batch;
+        this.lists = lists;
+        this.base = URI.create("http://localhost:" + port + "/lists/");
+    }
+
+    void run(int seconds) throws InterruptedException {
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<long[]> latencies = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            String list = "load-" + (c % lists);
+            threads[c] = new Thread(() -> latencies.add(client(list, end)));
+            threads[c].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        int count = 0;
+        for (long[] l : latencies) {
+            count += (int) l[0];
+        }
+        long[] all = new long[count];
+        int at = 0;
+        for (long[] l : latencies) {
+            System.arraycopy(l, 1, all, at, (int) l[0]);
+            at += (int) l[0];
+        }
+        Arrays.sort(all);
+        System.out.printf("%d clients, %d requests, %,d writes in %d s: %,.0f writes/s, %d conflicts, %d failures%n",
+                clients, count, writes.sum(), seconds, writes.sum() / (double) seconds, conflicts.sum(), failures.sum());
+        if (count > 0) {
+            System.out.printf("request latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    all[count / 2] / 1e3, all[(int) (count * 0.99)] / 1e3, all[count - 1] / 1e3);
+        }
+    }
+
+    // Request latencies in microseconds, with the count in slot 0
+    private long[] client(String list, long end) {
+        long[] latency = new long[1024];
+        int n = 0;
+        while (System.nanoTime() < end) {
+            StringBuilder adds = new StringBuilder();
+            for (int i = 0; i < batch; i++) {
+                adds.append("add 2 0 load task ").append(Thread.currentThread().getId()).append('-').append(i).append('\n');
+            }
+            long start = System.nanoTime();
+            String[] added = post(list, adds.toString());
+            long mid = System.nanoTime();
+            if (added == null) {
+                continue;
+            }
+            StringBuilder deletes = new StringBuilder();
+            for (String result : added) {
+                if (result.startsWith("ok ")) {
+                    deletes.append("delete ").append(result.substring(3)).append('\n');
+                }
+            }
+            String[] deleted = post(list, deletes.toString());
+            long stop = System.nanoTime();
+            if (latency.length < n + 3) {
+                latency = Arrays.copyOf(latency, latency.length * 2);
+            }
+            latency[++n] = (mid - start) / 1000;
+            if (deleted != null) {
+                latency[++n] = (stop - mid) / 1000;
+            }
+        }
+        latency[0] = n;
+        return latency;
+    }
+
+    private String[] post(String list, String body) {
+        HttpRequest request = HttpRequest.newBuilder(base.resolve(list))
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build();
+        try {
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                failures.increment();
+                return null;
+            }
+            String[] results = response.body().split("\n");
+            for (String result : results) {
+                if (result.startsWith("ok ")) {
+                    writes.increment();
+                } else if (result.startsWith("conflict ")) {
+                    conflicts.increment();
+                }
+            }
+            return results;
+        } catch (IOException e) {
+            failures.increment();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
+
+public class TodoList {
+    static final String LOG_FILE = "todo.log";
+    // Where --serve keeps the shared lists, one log per list
+    static final String LISTS_DIR = "lists";
+    static final DateTimeFormatter DUE_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm");
+    static final int PAGE_SIZE = 20;
+
+    private TaskStore tasks;
+    private DueIndex due;
+    private TaskSearch search;
+    // Pages are written here and flushed once per page
+    private final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16), false);
+
+    public TodoList(Path log) throws IOException {
+        tasks = new TaskStore(log, true);
+        long now = System.currentTimeMillis();
+        due = new DueIndex(ZoneId.systemDefault(), now);
+        for (Task t : tasks.all()) {
+            due.add(t, now);
+        }
+        search = new TaskSearch(tasks.byId());
+    }
+
+    public long addTask(String task) throws IOException {
+        return addTask(task, Task.NORMAL, 0, Collections.emptySet());
+    }
+
+    public long addTask(String task, int priority, long dueAt, Set<String> tags) throws IOException {
+        Task t = tasks.add(task, priority, dueAt, tags);
+        due.add(t, System.currentTimeMillis());
+        search.add(t);
+        return t.id;
+    }
+
+    public void removeTask(long id) throws IOException {
+        Task t = tasks.get(id);
+        if (!tasks.delete(id)) {
+            System.out.println("No task with id " + id);
+            return;
+        }
+        due.remove(t);
+        search.remove(t);
+    }
+
+    public void completeTask(long id) throws IOException {
+        if (!tasks.complete(id)) {
+            System.out.println(tasks.get(id) == null ? "No task with id " + id : "Task " + id + " is already done");
+            return;
+        }
+        due.remove(tasks.get(id));
+    }
+
+    public void listTasks(Scanner scanner) {
+        showPaged("Task List:", tasks.all().iterator(), tasks.size(), scanner);
+    }
+
+    public void searchTasks(String text, boolean wordPrefix, Scanner scanner) {
+        long start = System.nanoTime();
+        List<Task> found = wordPrefix ? search.withWordPrefix(text) : search.containing(text);
+        String title = String.format("%d task(s) %s '%s' (%.1f ms):", found.size(),
+                wordPrefix ? "with a word starting with" : "containing", text, (System.nanoTime() - start) / 1e6);
+        showPaged(title, found.iterator(), found.size(), scanner);
+    }
+
+    // PAGE_SIZE tasks at a time; Enter shows the next page, anything else stops
+    private void showPaged(String title, Iterator<Task> it, int total, Scanner scanner) {
+        out.println(title);
+        int pages = Math.max(1, (total + PAGE_SIZE - 1) / PAGE_SIZE);
+        for (int page = 1; ; page++) {
+            for (int i = 0; i < PAGE_SIZE && it.hasNext(); i++) {
+                out.println(describe(it.next()));
+            }
+            if (!it.hasNext()) {
+                out.flush();
+                return;
+            }
+            out.print("-- page " + page + " of " + pages + ", Enter for more, q to stop -- ");
+            out.flush();
+            if (!scanner.nextLine().isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    public void nextDue() {
+        Task t = due.nextDue(System.currentTimeMillis());
+        System.out.println(t == null ? "No upcoming due dates" : "Next due: " + describe(t));
+    }
+
+    public void listOverdue() {
+        listDue("Overdue:", due.overdue(System.currentTimeMillis()));
+    }
+
+    public void listDueThisWeek() {
+        listDue("Due in the next 7 days:", due.dueWithin(System.currentTimeMillis(), 7));
+    }
+
+    // Printing a reminder for every task as it falls due
+    public void startReminders() {
+        due.startReminders(t -> System.out.println("\nReminder: task " + describe(t) + " is due now"));
+    }
+
+    private void listDue(String title, List<Task> found) {
+        System.out.println(title);
+        if (found.isEmpty()) {
+            System.out.println("(none)");
+        }
+        for (Task t : found) {
+            System.out.println(describe(t));
+        }
+    }
+
+    static String describe(Task t) {
+        StringBuilder line = new StringBuilder();
+        line.append(t.id).append(". ").append(t.done ? "[x] " : "[ ] ").append(t.text);
+        if (t.priority != Task.NORMAL) {
+            line.append(" (").append(Task.PRIORITIES[t.priority]).append(" priority)");
+        }
+        if (t.due != 0) {
+            line.append(" due ").append(DUE_FORMAT.format(Instant.ofEpochMilli(t.due).atZone(ZoneId.systemDefault())));
+        }
+        for (String tag : t.tags) {
+            line.append(" #").append(tag);
+        }
+        return line.toString();
+    }
+
+    // "dd/MM/yyyy HH:mm", or 0 for a blank line
+    static long parseDue(String text) {
+        if (text.isBlank()) {
+            return 0;
+        }
+        return LocalDateTime.parse(text.trim(), DUE_FORMAT).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    static Set<String> parseTags(String text) {
+        Set<String> tags = new LinkedHashSet<>();
+        for (String tag : text.split("[,\\s]+")) {
+            if (!tag.isEmpty()) {
+                tags.add(tag.startsWith("#") ? tag.substring(1) : tag);
+            }
+        }
+        return tags;
+    }
+
+    // --serve [port] [directory]: the shared lists over HTTP until killed
+    static void serve(String[] args) throws IOException {
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : TaskApi.DEFAULT_PORT;
+        Path dir = Paths.get(args.length > 2 ? args[2] : LISTS_DIR);
+        TaskService service = new TaskService(dir);
+        TaskApi.start(service, port);
+        System.out.println("Serving task lists from " + dir + " on http://localhost:" + port + "/lists/");
+        long last = 0;
+        while (true) {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long total = service.writes.sum();
+            if (total != last) {
+                System.out.printf("%,d writes, %,.0f/s%n", total, (total - last) / 5.0);
+                last = total;
+            }
+        }
+    }
+
+    // --load [clients] [seconds] [batch] [lists] [port]
+    static void load(String[] args) throws InterruptedException {
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int batch = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        int lists = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+        int port = args.length > 5 ? Integer.parseInt(args[5]) : TaskApi.DEFAULT_PORT;
+        new TaskLoad(clients, batch, lists, port).run(seconds);
+    }
+
     public static void main(String[] args) {
-        TodoList todoList = new TodoList();
+        try {
+            if (args.length > 0 && args[0].equals("--serve")) {
+                serve(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--load")) {
+                load(args);
+                return;
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        TodoList todoList;
+        try {
+            todoList = new TodoList(Paths.get(LOG_FILE));
+        } catch (IOException e) {
+            System.out.println("Unable to open " + LOG_FILE + ": " + e.getMessage());
+            return;
+        }
+        todoList.startReminders();
         Scanner scanner = new Scanner(System.in);
 
         while (true) {
             System.out.println("\nChoose an action:");
             System.out.println("1. Add task");
+            System.out.println("11. Add task with priority, due date and tags");
             System.out.println("2. Remove task");
             System.out.println("3. List tasks");
+            // Add and Exit keep the input they always took; newer actions are numbered after them
+            System.out.println("5. Complete task");
+            System.out.println("6. Next due task");
+            System.out.println("7. Overdue tasks");
+            System.out.println("8. Tasks due this week");
+            System.out.println("9. Search tasks");
+            System.out.println("10. Search by word prefix");
             System.out.println("4. Exit");
 
             int choice = scanner.nextInt();
             scanner.nextLine(); // Consume the newline character
 
-            switch (choice) {
-                case 1:
-                    System.out.print("Enter the task: ");
-                    String task = scanner.nextLine();
-                    todoList.addTask(task);
-                    break;
-                case 2:
-                    System.out.print("Enter the index of the task to remove: ");
-                    int index = scanner.nextInt();
-                    scanner.nextLine(); // Consume the newline character
-                    todoList.removeTask(index - 1);
-                    break;
-                case 3:
-                    todoList.listTasks();
-                    break;
-                case 4:
-                    System.out.println("Exiting...");
-                    System.exit(0);
-                    break;
-                default:
-                    System.out.println("Invalid option");
+            try {
+                switch (choice) {
+                    case 1:
+                        System.out.print("Enter the task: ");
+                        System.out.println("Added task " + todoList.addTask(scanner.nextLine()));
+                        break;
+                    case 11:
+                        System.out.print("Enter the task: ");
+                        String task = scanner.nextLine();
+                        System.out.print("Priority (1 high, 2 normal, 3 low) [2]: ");
+                        String priority = scanner.nextLine().trim();
+                        System.out.print("Due date (dd/MM/yyyy HH:mm, blank for none): ");
+                        String dueAt = scanner.nextLine();
+                        System.out.print("Tags (comma separated, blank for none): ");
+                        String tags = scanner.nextLine();
+                        try {
+                            int p = priority.isEmpty() ? Task.NORMAL : Integer.parseInt(priority);
+                            if (p < Task.HIGH || p > Task.LOW) {
+                                System.out.println("Invalid priority");
+                                break;
+                            }
+                            System.out.println("Added task " + todoList.addTask(task, p, parseDue(dueAt), parseTags(tags)));
+                        } catch (NumberFormatException | DateTimeParseException e) {
+                            System.out.println("Invalid priority or due date");
+                        }
+                        break;
+                    case 2:
+                        System.out.print("Enter the id of the task to remove: ");
+                        long id = scanner.nextLong();
+                        scanner.nextLine(); // Consume the newline character
+                        todoList.removeTask(id);
+                        break;
+                    case 3:
+                        todoList.listTasks(scanner);
+                        break;
+                    case 5:
+                        System.out.print("Enter the id of the task to complete: ");
+                        long done = scanner.nextLong();
+                        scanner.nextLine(); // Consume the newline character
+                        todoList.completeTask(done);
+                        break;
+                    case 6:
+                        todoList.nextDue();
+                        break;
+                    case 7:
+                        todoList.listOverdue();
+                        break;
+                    case 8:
+                        todoList.listDueThisWeek();
+                        break;
+                    case 9:
+                    case 10:
+                        System.out.print("Search for: ");
+                        todoList.searchTasks(scanner.nextLine().trim(), choice == 10, scanner);
+                        break;
+                    case 4:
+                        System.out.println("Exiting...");
+                        todoList.tasks.close();
+                        System.exit(0);
+                        break;
+                    default:
+                        System.out.println("Invalid option");
+                }
+            } catch (IOException e) {
+                System.out.println("Unable to save the change: " + e.getMessage());
             }
         }
     }